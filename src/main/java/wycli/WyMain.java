@@ -14,12 +14,20 @@
 package wycli;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import wybs.lang.Build;
 import wybs.lang.Build.Meter;
@@ -31,11 +39,15 @@ import wycli.cfg.ConfigFile;
 import wycli.cfg.Configuration;
 import wycli.cfg.ConfigurationCombinator;
 import wycli.lang.Command;
+import wycli.lang.Metrics;
 import wycli.lang.Package;
 import wycli.util.AbstractWorkspace;
 import wycli.util.CommandParser;
+import wycli.util.DirectoryBuildCache;
+import wycli.util.HttpBuildCache;
 import wycli.util.LocalPackageRepository;
 import wycli.util.RemotePackageRepository;
+import wycli.util.StateFile;
 import wycli.util.StdPackageResolver;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
@@ -96,13 +108,18 @@ public class WyMain extends AbstractWorkspace {
 	 * The package resolver used in this workspace.
 	 */
 	protected Package.Resolver resolver;
+	/**
+	 * The repository from which packages are obtained.
+	 */
+	protected RemotePackageRepository repository;
 
 	public WyMain(Configuration configuration, String dir, Path.Root repository) throws IOException {
 		super(configuration);
 		// Setup workspace root
 		this.localRoot = new DirectoryRoot(dir, registry);
 		// Setup package resolver
-		this.resolver = new StdPackageResolver(this, new RemotePackageRepository(this, registry, repository));
+		this.repository = new RemotePackageRepository(this, null, registry, repository, getPackageCache());
+		this.resolver = new StdPackageResolver(this, this.repository, getPackageCache());
 	}
 
 	@Override
@@ -115,6 +132,11 @@ public class WyMain extends AbstractWorkspace {
 		return resolver;
 	}
 
+	@Override
+	public boolean isOffline() {
+		return repository.isOffline();
+	}
+
 	// ==================================================================
 	// Main Method
 	// ==================================================================
@@ -133,9 +155,9 @@ public class WyMain extends AbstractWorkspace {
 		// Read the system configuration file
 		Configuration system = readConfigFile("wy", systemRoot, SYSTEM_CONFIG_SCHEMA);
 		// Read the global configuration file
-		Configuration global = readConfigFile("wy", globalRoot, GLOBAL_CONFIG_SCHEMA, LocalPackageRepository.SCHEMA, RemotePackageRepository.SCHEMA);
+		Configuration global = readConfigFile("wy", globalRoot, GLOBAL_CONFIG_SCHEMA, LocalPackageRepository.SCHEMA, RemotePackageRepository.SCHEMA, DirectoryBuildCache.SCHEMA, HttpBuildCache.SCHEMA);
 		// Read the global configuration file
-		Configuration local = readConfigFile("wy", localRoot, LOCAL_CONFIG_SCHEMA, LocalPackageRepository.SCHEMA, RemotePackageRepository.SCHEMA);
+		Configuration local = readConfigFile("wy", localRoot, LOCAL_CONFIG_SCHEMA, LocalPackageRepository.SCHEMA, RemotePackageRepository.SCHEMA, DirectoryBuildCache.SCHEMA, HttpBuildCache.SCHEMA);
 		// Construct the merged configuration
 		Configuration config = new ConfigurationCombinator(local, global, system);
 		// Construct the workspace
@@ -152,11 +174,34 @@ public class WyMain extends AbstractWorkspace {
 			workspace.setLogger(logger);
 			workspace.setMeter(new Meter("Build",logger,profile));
 		}
+		// Apply offline setting
+		workspace.repository.setOffline(template.getOptions().get("offline", Boolean.class));
+		// Apply metrics settings
+		boolean metrics = template.getOptions().get("metrics", Boolean.class);
+		File metricsFile = null;
+		ScheduledExecutorService dumper = null;
+		int interval = template.getOptions().get("metrics-interval", Integer.class);
+		if (template.getOptions().has("metrics-file")) {
+			metricsFile = new File(template.getOptions().get("metrics-file", String.class));
+			if (interval > 0) {
+				dumper = scheduleMetricsDump(workspace.getMetrics(), metricsFile, interval);
+			}
+		} else if (interval > 0) {
+			System.err.println("error: --metrics-interval requires --metrics-file");
+			System.exit(-1);
+		}
 		int exitCode;
 		// Done
 		try {
 			// Select project (if applicable)
-			Command.Project project = workspace.open(pid);
+			Command.Project project = null;
+			workspace.setCurrentProject(pid);
+			if (template.getOptions().get("all-projects", Boolean.class)) {
+				// Open all projects, leaving the command to apply to each
+				workspace.openAll();
+			} else if (getSelectedCommand(template).requiresProject()) {
+				project = workspace.open(pid);
+			}
 			// Create command instance
 			Command instance = descriptor.initialise(workspace);
 			// Execute command
@@ -179,6 +224,17 @@ public class WyMain extends AbstractWorkspace {
 			exitCode = 2;
 		} finally {
 			workspace.closeAll();
+			workspace.repository.close();
+			// Report metrics (if applicable)
+			if (dumper != null) {
+				dumper.shutdownNow();
+			}
+			if (metricsFile != null) {
+				dumpMetrics(workspace.getMetrics(), metricsFile);
+			}
+			if (metrics) {
+				workspace.getMetrics().report(System.err);
+			}
 		}
 		System.exit(exitCode);
 	}
@@ -187,6 +243,20 @@ public class WyMain extends AbstractWorkspace {
 	// Helpers
 	// ==================================================================
 
+	/**
+	 * Determine the (sub-)command selected by a given template. That is, the
+	 * innermost one.
+	 *
+	 * @param template
+	 * @return
+	 */
+	private static Command.Descriptor getSelectedCommand(Command.Template template) {
+		while (template.getChild() != null) {
+			template = template.getChild();
+		}
+		return template.getCommandDescriptor();
+	}
+
 	/**
 	 * Determine the system root. That is, the installation directory for the
 	 * compiler itself.
@@ -213,52 +283,157 @@ public class WyMain extends AbstractWorkspace {
 	 * @throws IOException
 	 */
 	private static Path.Root determineGlobalRoot() throws IOException {
-		String userhome = System.getProperty("user.home");
-		String whileydir = userhome + File.separator + ".whiley";
-		return new DirectoryRoot(whileydir, BOOT_REGISTRY);
+		return new DirectoryRoot(getGlobalDirectory(), BOOT_REGISTRY);
+	}
+
+	/**
+	 * Get the directory containing global configuration and state (i.e.
+	 * <code>~/.whiley</code>).
+	 *
+	 * @return
+	 */
+	private static File getGlobalDirectory() {
+		return new File(System.getProperty("user.home"), ".whiley");
 	}
 
 	/**
 	 * Determine where the root of this project is. This is the nearest enclosing
 	 * directory containing a "wy.toml" file. The point is that we may be operating
 	 * in some subdirectory of the project and want the tool to automatically search
-	 * out the real root for us.
+	 * out the real root for us. Since searching can be expensive (e.g. on networked
+	 * file systems), the outcome is cached in the global root for each directory.
 	 *
 	 * @return
 	 * @throws IOException
 	 */
 	private static Pair<Path.Root,Path.ID> determineLocalRootAndProject() throws IOException {
-		// Search for inner configuration.
-		File inner = findConfigFile(new File("."));
+		java.nio.file.Path dir = Paths.get("").toAbsolutePath().normalize();
+		File cache = new File(getGlobalDirectory(), WORKSPACE_CACHE);
+		java.nio.file.Path[] roots = findCachedConfigFiles(cache, dir);
+		java.nio.file.Path inner = roots[0];
+		java.nio.file.Path outer = roots[1];
 		if(inner == null) {
 			throw new IllegalArgumentException("unable to find build configuration (\"wy.toml\")");
-		}
-		// Search for enclosing configuration (if applicable).
-		File outer = findConfigFile(inner.getParentFile());
-		if(outer == null) {
+		} else if(outer == null) {
 			// No enclosing configuration found.
-			return new Pair<>(new DirectoryRoot(inner,BOOT_REGISTRY),Trie.ROOT);
+			return new Pair<>(new DirectoryRoot(inner.toFile(),BOOT_REGISTRY),Trie.ROOT);
 		} else {
 			// Calculate relative path
-			String path = inner.getPath().replace(outer.getPath(), "").replace(File.separatorChar,'/');
+			String path = outer.relativize(inner).toString().replace(File.separatorChar,'/');
 			// Done
-			return new Pair<>(new DirectoryRoot(outer,BOOT_REGISTRY),Trie.fromString(path));
+			return new Pair<>(new DirectoryRoot(outer.toFile(),BOOT_REGISTRY),Trie.fromString(path));
+		}
+	}
+
+	/**
+	 * Find the inner and (if applicable) outer configuration files enclosing a
+	 * given directory, using the workspace cache where possible. Validating an
+	 * entry costs a constant number of file system queries, regardless of depth:
+	 * the given directory must have the same identity and modification time as
+	 * when the entry was recorded, and the configuration files it records must
+	 * still exist. Hence, adding or removing a configuration file in the given
+	 * directory, or removing a recorded one, is noticed immediately. However,
+	 * adding a configuration file to some other directory on the path (e.g.
+	 * between the inner and outer directories) is not noticed until the entry
+	 * expires. That is, such changes may go unseen for up to
+	 * WORKSPACE_CACHE_TIMEOUT.
+	 *
+	 * @param cacheFile
+	 * @param dir
+	 * @return
+	 */
+	private static java.nio.file.Path[] findCachedConfigFiles(File cacheFile, java.nio.file.Path dir) {
+		String prefix = "dir/" + dir + "/";
+		StateFile cache = StateFile.read(cacheFile);
+		String inner = cache.get(prefix + "inner");
+		String outer = cache.get(prefix + "outer");
+		String time = cache.get(prefix + "time");
+		String recorded = cache.get(prefix + "identity");
+		String identity = getIdentity(dir);
+		long now = System.currentTimeMillis();
+		try {
+			if (recorded != null && recorded.equals(identity) && time != null
+					&& (now - Long.parseLong(time)) < WORKSPACE_CACHE_TIMEOUT && inner != null
+					&& isConfigDirectory(Paths.get(inner)) && (outer == null || isConfigDirectory(Paths.get(outer)))) {
+				return new java.nio.file.Path[] { Paths.get(inner), outer == null ? null : Paths.get(outer) };
+			}
+		} catch (NumberFormatException | InvalidPathException e) {
+			// Fall through and treat as missing
 		}
+		java.nio.file.Path[] roots = findConfigFiles(dir);
+		if (roots[0] != null && identity != null) {
+			if (cache.keySet().size() > WORKSPACE_CACHE_LIMIT) {
+				cache.clear("dir/");
+			}
+			cache.clear(prefix);
+			cache.put(prefix + "identity", identity);
+			cache.put(prefix + "time", Long.toString(now));
+			cache.put(prefix + "inner", roots[0].toString());
+			if (roots[1] != null) {
+				cache.put(prefix + "outer", roots[1].toString());
+			}
+			try {
+				cache.write(cacheFile);
+			} catch (IOException e) {
+				// Caching is only an optimisation
+			}
+		}
+		return roots;
 	}
 
-	private static File findConfigFile(File dir) {
+	/**
+	 * Find the inner and outer directories containing configuration files which
+	 * enclose a given directory, in a single traversal up the directory hierarchy.
+	 * Either may be <code>null</code> if there is no such directory.
+	 *
+	 * @param dir
+	 * @return
+	 */
+	private static java.nio.file.Path[] findConfigFiles(java.nio.file.Path dir) {
+		java.nio.file.Path[] roots = new java.nio.file.Path[2];
+		int n = 0;
 		// Traverse up the directory hierarchy
-		while (dir != null && dir.exists() && dir.isDirectory()) {
-			File wyf = new File(dir + File.separator + "wy.toml");
-			if (wyf.exists()) {
-				return dir;
+		while (dir != null && n < roots.length) {
+			if (isConfigDirectory(dir)) {
+				roots[n++] = dir;
 			}
-			// Traverse back up the directory hierarchy looking for a suitable directory.
-			dir = dir.getParentFile();
+			dir = dir.getParent();
+		}
+		return roots;
+	}
+
+	/**
+	 * Check whether a given directory contains a configuration file. This requires
+	 * only a single file system query, since a missing directory (or one which is
+	 * not a directory) simply means the file is not found.
+	 *
+	 * @param dir
+	 * @return
+	 */
+	private static boolean isConfigDirectory(java.nio.file.Path dir) {
+		try {
+			return Files.readAttributes(dir.resolve("wy.toml"), BasicFileAttributes.class).isRegularFile();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Determine a string which identifies a given directory and its current
+	 * contents. That is, its file key (where supported) and modification time.
+	 *
+	 * @param dir
+	 * @return The identity, or <code>null</code> if the directory could not be
+	 *         examined.
+	 */
+	private static String getIdentity(java.nio.file.Path dir) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+			Object key = attrs.fileKey() != null ? attrs.fileKey() : dir;
+			return key + "@" + attrs.lastModifiedTime().toMillis();
+		} catch (IOException e) {
+			return null;
 		}
-		// If we get here then it means we didn't find a root, therefore just use
-		// current directory.
-		return null;
 	}
 
 	/**
@@ -266,7 +441,25 @@ public class WyMain extends AbstractWorkspace {
 	 * main tool itself.
 	 */
 	public static Content.Registry BOOT_REGISTRY = new DefaultContentRegistry()
-			.register(ConfigFile.ContentType, "toml").register(ZipFile.ContentType, "zip");
+			.register(ConfigFile.ContentType, "toml").register(ZipFile.ContentType, "zip")
+			.register(StateFile.ContentType, "state");
+
+	/**
+	 * Identifies the cache of workspace locations within the global directory.
+	 */
+	private static final String WORKSPACE_CACHE = "workspaces.state";
+
+	/**
+	 * Maximum age (in milliseconds) of an entry in the workspace cache. This bounds
+	 * how long a configuration file added above the current directory can go
+	 * unnoticed.
+	 */
+	private static final long WORKSPACE_CACHE_TIMEOUT = 5 * 60 * 1000;
+
+	/**
+	 * Maximum number of keys in the workspace cache before it is reset.
+	 */
+	private static final int WORKSPACE_CACHE_LIMIT = 1024;
 
 	/**
 	 * Attempt to read a configuration file from a given root.
@@ -294,6 +487,43 @@ public class WyMain extends AbstractWorkspace {
 		}
 	}
 
+	/**
+	 * Periodically dump the contents of a given metrics registry to a given file.
+	 * This is useful for long-running (e.g. daemon-style) commands. The dump is
+	 * performed on a separate daemon thread and, hence, does not prevent the
+	 * virtual machine from exiting.
+	 *
+	 * @param metrics
+	 * @param file
+	 * @param interval
+	 *            Interval between dumps (in seconds)
+	 * @return
+	 */
+	private static ScheduledExecutorService scheduleMetricsDump(Metrics metrics, File file, int interval) {
+		ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(() -> dumpMetrics(metrics, file), interval, interval, TimeUnit.SECONDS);
+		return dumper;
+	}
+
+	/**
+	 * Dump the contents of a given metrics registry to a given file, overwriting
+	 * any previous contents.
+	 *
+	 * @param metrics
+	 * @param file
+	 */
+	private static void dumpMetrics(Metrics metrics, File file) {
+		try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+			metrics.report(out);
+		} catch (IOException e) {
+			System.err.println("error writing metrics to " + file + ": " + e.getMessage());
+		}
+	}
+
 	/**
 	 * Print a complete stack trace. This differs from Throwable.printStackTrace()
 	 * in that it always prints all of the trace.
@@ -13,29 +13,90 @@
 // limitations under the License.
 package wycli.commands;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import wybs.lang.SyntacticHeap;
 import wybs.lang.SyntacticItem;
 import wybs.util.AbstractCompilationUnit;
 import wybs.util.AbstractCompilationUnit.Attribute;
 import wybs.util.AbstractCompilationUnit.Attribute.Span;
+import wybs.util.AbstractCompilationUnit.Value;
+import wycli.cfg.ConfigFile;
 import wycli.cfg.Configuration;
 import wycli.cfg.Configuration.Schema;
+import wycli.lang.BuildCache;
 import wycli.lang.Command;
+import wycli.lang.Metrics;
+import wycli.util.AbstractWorkspace;
+import wycli.util.BuildDatabase;
+import wycli.util.DiagnosticWriter;
+import wycli.util.DirectoryBuildCache;
+import wycli.util.Hashing;
+import wycli.util.HttpBuildCache;
+import wycli.util.StateFile;
 import wyfs.lang.Path;
+import wyfs.util.Pair;
+import wyfs.util.Trie;
 
 public class Build implements Command {
+	/**
+	 * Records which targets are known to contain no syntactic markers, such that
+	 * they need not be decoded after every build.
+	 */
+	private static final Trie MARKER_STATE = Trie.fromString(".wy/markers");
+
+	/**
+	 * The period of quiet (in milliseconds) which must follow a change before a
+	 * rebuild is started in watch mode. This ensures a burst of changes (e.g. from
+	 * saving several files at once) results in a single rebuild.
+	 */
+	private static final int WATCH_DEBOUNCE = 100;
+
+	/**
+	 * Caches the version determined for each platform class.
+	 */
+	private static final ConcurrentHashMap<Class<?>, String> PLATFORM_VERSIONS = new ConcurrentHashMap<>();
+
 	/**
 	 * The descriptor for this command.
 	 */
@@ -53,7 +114,10 @@ public class Build implements Command {
 		@Override
 		public List<Option.Descriptor> getOptionDescriptors() {
 			return Arrays.asList(Command.OPTION_FLAG("verbose", "generate verbose information about the build", false),
-					Command.OPTION_FLAG("brief", "generate brief output for syntax errors", false));
+					Command.OPTION_FLAG("brief", "generate brief output for syntax errors", false),
+					Command.OPTION_CHOICE("diagnostics", "format for reporting syntax errors", "text",
+							DiagnosticWriter.FORMATS),
+					Command.OPTION_FLAG("watch", "rebuild whenever source files change", false));
 		}
 
 		@Override
@@ -119,31 +183,634 @@ public class Build implements Command {
 
 	@Override
 	public boolean execute(Command.Project project, Template template) throws Exception {
-		boolean r = true;
+		String format = template.getOptions().get("diagnostics", String.class);
+		boolean watch = template.getOptions().get("watch", Boolean.class);
+		DiagnosticWriter diagnostics = createDiagnosticWriter(format);
+		List<wybs.lang.Build.Project> projects;
 		if(project == null) {
 			// Build all projects
-			for(wybs.lang.Build.Project p : environment.getProjects()) {
-				r &= execute(p);
-			}
+			projects = environment.getProjects();
 		} else {
 			// Build target project (and dependencies)
-			r = execute(project);
+			projects = Collections.singletonList(project);
+		}
+		boolean r = true;
+		try {
+			for (wybs.lang.Build.Project p : projects) {
+				r &= execute(p, diagnostics);
+			}
+			if (watch) {
+				diagnostics.flush();
+				r = watch(projects, diagnostics);
+			}
+		} finally {
+			// Ensure output is complete (e.g. closing a JSON array)
+			diagnostics.finish();
 		}
 		//
 		return r;
 	}
 
-	private boolean execute(wybs.lang.Build.Project project) throws Exception {
-		// Build the project
-		boolean r = project.build(environment.getExecutor(), environment.getMeter()).get();
-		// Look for error messages
-		for (wybs.lang.Build.Task task : project.getTasks()) {
-			printSyntacticMarkers(syserr, task.getSources(), task.getTarget());
+	/**
+	 * Continuously rebuild a given set of projects as their source files change.
+	 * Changes are detected by watching every (non-hidden) directory within each
+	 * project, including those created whilst watching. Following a change, only
+	 * those projects with affected tasks are rebuilt and only diagnostics for
+	 * affected tasks are reported. Since the workspace remains open between
+	 * builds, there is no startup cost for each rebuild. A build which fails with
+	 * an exception is reported, and watching continues. This only returns when the
+	 * thread is interrupted.
+	 *
+	 * @param projects
+	 * @param diagnostics
+	 * @return The result of the most recent build.
+	 * @throws Exception
+	 */
+	private boolean watch(List<wybs.lang.Build.Project> projects, DiagnosticWriter diagnostics) throws Exception {
+		boolean r = true;
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			HashSet<java.nio.file.Path> directories = new HashSet<>();
+			for (wybs.lang.Build.Project p : projects) {
+				for (java.nio.file.Path dir : getWatchedDirectories(p)) {
+					registerDirectories(watcher, dir, directories, null);
+				}
+			}
+			syserr.println("Watching for changes (press Ctrl-C to stop) ...");
+			while (true) {
+				// Wait for something to change
+				HashSet<java.nio.file.Path> changed = new HashSet<>();
+				boolean overflow = pollChanges(watcher, watcher.take(), directories, changed);
+				// Wait for burst of changes to finish
+				WatchKey key;
+				while ((key = watcher.poll(WATCH_DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+					overflow |= pollChanges(watcher, key, directories, changed);
+				}
+				long start = System.currentTimeMillis();
+				int count = 0;
+				r = true;
+				for (wybs.lang.Build.Project p : projects) {
+					// Pick up any added or removed files
+					p.refresh();
+					List<wybs.lang.Build.Task> affected = getAffectedTasks(p, changed, overflow);
+					if (!affected.isEmpty()) {
+						// Rebuild project and report any problems with affected tasks
+						try {
+							boolean built = p.build(environment.getExecutor(), environment.getMeter()).get();
+							printSyntacticMarkers(diagnostics, p, affected);
+							updateBuildDatabase(p, BuildDatabase.read(p.getRoot()), built);
+							r &= built;
+						} catch (ExecutionException | IOException e) {
+							Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+							syserr.println("Build failed: " + cause.getMessage());
+							r = false;
+						}
+						count += affected.size();
+					}
+				}
+				diagnostics.flush();
+				if (count > 0) {
+					long time = System.currentTimeMillis() - start;
+					syserr.println("Rebuilt " + count + " task(s) in " + time + "ms");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
-		//
 		return r;
 	}
 
+	/**
+	 * Determine the directories to watch for a given project. This is the
+	 * directory containing the project's configuration file. If this cannot be
+	 * determined, then the directories containing its source files are used
+	 * instead.
+	 *
+	 * @param project
+	 * @return
+	 * @throws IOException
+	 */
+	private static Set<java.nio.file.Path> getWatchedDirectories(wybs.lang.Build.Project project)
+			throws IOException {
+		HashSet<java.nio.file.Path> dirs = new HashSet<>();
+		Path.Entry<ConfigFile> config = project.getRoot().get(Trie.fromString("wy"), ConfigFile.ContentType);
+		if (config != null && toPath(config).getParent() != null) {
+			dirs.add(toPath(config).getParent());
+		} else {
+			for (wybs.lang.Build.Task task : project.getTasks()) {
+				for (Path.Entry<?> source : task.getSources()) {
+					java.nio.file.Path dir = toPath(source).getParent();
+					if (dir != null) {
+						dirs.add(dir);
+					}
+				}
+			}
+		}
+		return dirs;
+	}
+
+	/**
+	 * Register a given directory, and all (non-hidden) directories within it, with
+	 * a given watch service. Directories which are already registered are ignored.
+	 * Hidden directories (e.g. <code>.wy</code>) are skipped, since they hold state
+	 * written by the build itself. Files found in the directories registered are
+	 * optionally recorded, which matters for a directory created whilst watching
+	 * since its files may already exist by the time it is registered.
+	 *
+	 * @param watcher
+	 * @param dir
+	 * @param directories
+	 *            The set of directories registered so far.
+	 * @param files
+	 *            Records any files found (or <code>null</code> if not required).
+	 * @throws IOException
+	 */
+	private static void registerDirectories(WatchService watcher, java.nio.file.Path dir,
+			Set<java.nio.file.Path> directories, Set<java.nio.file.Path> files) throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<java.nio.file.Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(java.nio.file.Path d, BasicFileAttributes attrs)
+					throws IOException {
+				if (!d.equals(dir) && d.getFileName().toString().startsWith(".")) {
+					return FileVisitResult.SKIP_SUBTREE;
+				} else if (directories.add(d)) {
+					d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(java.nio.file.Path file, BasicFileAttributes attrs) {
+				if (files != null) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(java.nio.file.Path file, IOException e) {
+				// Directory removed whilst walking, or unreadable
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Extract the files which have changed from a given watch key, and then reset
+	 * it. Any directories which have been created are registered with the watch
+	 * service, and their contents are considered changed.
+	 *
+	 * @param watcher
+	 * @param key
+	 * @param directories
+	 *            The set of directories registered so far.
+	 * @param changed
+	 * @return True if events were lost (in which case everything should be
+	 *         considered changed).
+	 * @throws IOException
+	 */
+	private static boolean pollChanges(WatchService watcher, WatchKey key, Set<java.nio.file.Path> directories,
+			Set<java.nio.file.Path> changed) throws IOException {
+		boolean overflow = false;
+		java.nio.file.Path dir = (java.nio.file.Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+			} else {
+				java.nio.file.Path file = dir.resolve((java.nio.file.Path) event.context());
+				changed.add(file);
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)
+						&& !file.getFileName().toString().startsWith(".")) {
+					registerDirectories(watcher, file, directories, changed);
+				}
+			}
+		}
+		if (!key.reset()) {
+			// Directory no longer accessible (e.g. deleted)
+			directories.remove(dir);
+		}
+		return overflow;
+	}
+
+	/**
+	 * Determine which tasks in a given project are affected by a given set of
+	 * changed files. A file which is not the source (or target) of any task, but
+	 * which has the same suffix as some source, may have just been created and,
+	 * hence, may become the source of some task. In such case, all tasks are
+	 * considered affected. Other files (e.g. hidden files, or other files written
+	 * by the build) are ignored.
+	 *
+	 * @param project
+	 * @param changed
+	 * @param overflow
+	 *            Indicates whether changes may have been lost.
+	 * @return
+	 */
+	private static List<wybs.lang.Build.Task> getAffectedTasks(wybs.lang.Build.Project project,
+			Set<java.nio.file.Path> changed, boolean overflow) {
+		ArrayList<wybs.lang.Build.Task> tasks = new ArrayList<>(project.getTasks());
+		if (overflow) {
+			return tasks;
+		}
+		HashMap<java.nio.file.Path, List<wybs.lang.Build.Task>> sources = new HashMap<>();
+		HashSet<java.nio.file.Path> targets = new HashSet<>();
+		HashSet<String> suffixes = new HashSet<>();
+		for (wybs.lang.Build.Task task : tasks) {
+			for (Path.Entry<?> source : task.getSources()) {
+				sources.computeIfAbsent(toPath(source), k -> new ArrayList<>()).add(task);
+				suffixes.add("." + source.suffix());
+			}
+			targets.add(toPath(task.getTarget()));
+		}
+		LinkedHashSet<wybs.lang.Build.Task> affected = new LinkedHashSet<>();
+		for (java.nio.file.Path file : changed) {
+			List<wybs.lang.Build.Task> ts = sources.get(file);
+			String name = file.getFileName().toString();
+			if (ts != null) {
+				affected.addAll(ts);
+			} else if (!targets.contains(file) && !name.startsWith(".") && isPossibleSource(name, suffixes)) {
+				// Possibly a new source file
+				return tasks;
+			}
+		}
+		// Report in task order
+		tasks.retainAll(affected);
+		return tasks;
+	}
+
+	/**
+	 * Check whether a file with a given name could be a source file, given the
+	 * suffixes of all known source files. If there are no known source files, then
+	 * any file could be.
+	 *
+	 * @param name
+	 * @param suffixes
+	 * @return
+	 */
+	private static boolean isPossibleSource(String name, Set<String> suffixes) {
+		if (suffixes.isEmpty()) {
+			return true;
+		}
+		for (String suffix : suffixes) {
+			if (name.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static java.nio.file.Path toPath(Path.Entry<?> entry) {
+		return new File(String.valueOf(entry.location())).toPath().toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Build a given project, reporting any problems in human readable form. This
+	 * allows other commands (e.g. <code>run</code>) to ensure a project is built
+	 * before using it.
+	 *
+	 * @param project
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean build(wybs.lang.Build.Project project) throws Exception {
+		DiagnosticWriter diagnostics = createDiagnosticWriter("text");
+		try {
+			return execute(project, diagnostics);
+		} finally {
+			diagnostics.finish();
+		}
+	}
+
+	private boolean execute(wybs.lang.Build.Project project, DiagnosticWriter diagnostics) throws Exception {
+		// Check whether anything has changed since the last successful build
+		BuildDatabase database = BuildDatabase.read(project.getRoot());
+		if (database.isUpToDate(project, getPlatformVersions())) {
+			environment.getLogger().logTimedMessage("Project is up-to-date", 0, 0);
+			return true;
+		}
+		try (BuildCache cache = createBuildCache()) {
+			// Retrieve any targets which have already been built elsewhere
+			Map<wybs.lang.Build.Task, String> misses = fetchCachedTargets(project, cache);
+			// Build the project
+			boolean r = project.build(environment.getExecutor(), environment.getMeter()).get();
+			// Look for error messages
+			printSyntacticMarkers(diagnostics, project, project.getTasks());
+			// Record outcome for next time
+			if (r) {
+				storeCachedTargets(misses, cache);
+			}
+			updateBuildDatabase(project, database, r);
+			//
+			return r;
+		}
+	}
+
+	/**
+	 * Record the outcome of building a given project in its build database. This
+	 * is also done after each rebuild in watch mode, such that a subsequent build
+	 * knows whether the project is up-to-date.
+	 *
+	 * @param project
+	 * @param database
+	 * @param success
+	 * @throws IOException
+	 */
+	private void updateBuildDatabase(wybs.lang.Build.Project project, BuildDatabase database, boolean success)
+			throws IOException {
+		String platforms = getPlatformVersions();
+		if (success && platforms != null) {
+			database.record(project, platforms);
+		} else {
+			database.clear();
+		}
+		database.write(project.getRoot());
+	}
+
+	/**
+	 * Construct the build cache configured for this environment, or
+	 * <code>null</code> if none is configured. If both a local and remote cache are
+	 * configured, then the local cache is consulted first. The remote cache is not
+	 * used when the environment is offline.
+	 *
+	 * @return
+	 */
+	private BuildCache createBuildCache() {
+		BuildCache cache = null;
+		if (environment.hasKey(HttpBuildCache.CACHE_URL) && !environment.isOffline()) {
+			String url = environment.get(Value.UTF8.class, HttpBuildCache.CACHE_URL).toString();
+			String cookie = null;
+			if (environment.hasKey(HttpBuildCache.CACHE_COOKIE)) {
+				cookie = environment.get(Value.UTF8.class, HttpBuildCache.CACHE_COOKIE).toString();
+			}
+			cache = new HttpBuildCache(url, cookie);
+		}
+		if (environment.hasKey(DirectoryBuildCache.CACHE_DIR)) {
+			String dir = environment.get(Value.UTF8.class, DirectoryBuildCache.CACHE_DIR).toString();
+			cache = new DirectoryBuildCache(new File(dir), cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * For each task in a given project, look for its target in the build cache.
+	 * Targets which are found are written out before the project is built and,
+	 * hence, the corresponding tasks need not be executed. Tasks are examined in
+	 * parallel, since this requires hashing all source files.
+	 *
+	 * @param project
+	 * @param cache
+	 * @return The tasks whose targets were not found, along with their cache key.
+	 * @throws IOException
+	 */
+	private Map<wybs.lang.Build.Task, String> fetchCachedTargets(wybs.lang.Build.Project project, BuildCache cache)
+			throws IOException {
+		LinkedHashMap<wybs.lang.Build.Task, String> misses = new LinkedHashMap<>();
+		String projectKey = cache == null ? null : getProjectCacheKey(project);
+		if (projectKey == null) {
+			return misses;
+		}
+		ExecutorService executor = environment.getExecutor();
+		Metrics.Counter hits = environment.getMetrics().counter("build.cache.hits");
+		// Look up all tasks in parallel
+		LinkedHashMap<wybs.lang.Build.Task, Future<String>> futures = new LinkedHashMap<>();
+		for (wybs.lang.Build.Task task : project.getTasks()) {
+			futures.put(task, executor.submit(() -> {
+				String key = getTaskCacheKey(projectKey, task);
+				byte[] contents = cache.get(key);
+				if (contents == null) {
+					return key;
+				}
+				try (OutputStream out = task.getTarget().outputStream()) {
+					out.write(contents);
+				}
+				hits.increment();
+				return null;
+			}));
+		}
+		for (Map.Entry<wybs.lang.Build.Task, Future<String>> e : futures.entrySet()) {
+			try {
+				String key = join(e.getValue());
+				if (key != null) {
+					misses.put(e.getKey(), key);
+				}
+			} catch (IOException ex) {
+				// A broken cache should not break the build
+				environment.getLogger().logTimedMessage("Build cache unavailable (" + ex.getMessage() + ")", 0, 0);
+			}
+		}
+		environment.getMetrics().counter("build.cache.misses").add(misses.size());
+		return misses;
+	}
+
+	/**
+	 * Store the targets of tasks which were built (i.e. not found in the cache) in
+	 * the build cache.
+	 *
+	 * @param misses
+	 * @param cache
+	 */
+	private void storeCachedTargets(Map<wybs.lang.Build.Task, String> misses, BuildCache cache) {
+		for (Map.Entry<wybs.lang.Build.Task, String> e : misses.entrySet()) {
+			try (InputStream in = e.getKey().getTarget().inputStream()) {
+				cache.put(e.getValue(), readAllBytes(in));
+			} catch (IOException ex) {
+				environment.getLogger().logTimedMessage("Build cache unavailable (" + ex.getMessage() + ")", 0, 0);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Determine the part of the cache key which is common to all tasks in a
+	 * project. That is, the resolved package versions (and digests), the build
+	 * configuration and the versions of all active build platforms.
+	 *
+	 * @param project
+	 * @return The key, or <code>null</code> if the cache should not be used.
+	 */
+	private String getProjectCacheKey(wybs.lang.Build.Project project) {
+		MessageDigest digest = Hashing.sha256();
+		// Packages
+		for (wybs.lang.Build.Package pkg : project.getPackages()) {
+			digest.update(("package:" + pkg.get(Value.UTF8.class, Trie.fromString("package/name")) + "-v"
+					+ pkg.get(Value.UTF8.class, Trie.fromString("package/version")) + "@"
+					+ AbstractWorkspace.getPackageDigest(pkg) + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		// Build configuration
+		if (project instanceof Command.Project) {
+			Command.Project p = (Command.Project) project;
+			for (Path.ID key : p.matchAll(Trie.fromString("build/**"))) {
+				digest.update(("config:" + key + "=" + p.get(Object.class, key) + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		// Platforms
+		String platforms = getPlatformVersions();
+		if (platforms == null) {
+			environment.getLogger().logTimedMessage("Build cache disabled (unknown platform version)", 0, 0);
+			return null;
+		}
+		digest.update(("platforms:" + platforms + "\n").getBytes(StandardCharsets.UTF_8));
+		return Hashing.toHexString(digest.digest());
+	}
+
+	/**
+	 * Determine a string which identifies the versions of all active build
+	 * platforms. This forms part of both the cache key and the build database,
+	 * since upgrading a plugin can change what it generates.
+	 *
+	 * @return The versions, or <code>null</code> if any cannot be determined.
+	 */
+	private String getPlatformVersions() {
+		ArrayList<String> versions = new ArrayList<>();
+		for (Command.Platform platform : environment.getBuildPlatforms()) {
+			String version = getPlatformVersion(platform.getClass());
+			if (version == null) {
+				return null;
+			}
+			versions.add(platform.getName() + "@" + version);
+		}
+		Collections.sort(versions);
+		return String.join(",", versions);
+	}
+
+	/**
+	 * Determine the version of the plugin providing a given platform. This is the
+	 * implementation version from its jar manifest where available. Otherwise
+	 * (e.g. when running from an IDE or an unversioned jar), it is the hash of the
+	 * jar (or class file) from which the platform was loaded. Versions are cached,
+	 * as hashing a jar is not free.
+	 *
+	 * @param platform
+	 * @return The version, or <code>null</code> if this cannot be determined.
+	 */
+	private static String getPlatformVersion(Class<?> platform) {
+		return PLATFORM_VERSIONS.computeIfAbsent(platform, c -> {
+			java.lang.Package pkg = c.getPackage();
+			String version = pkg != null ? pkg.getImplementationVersion() : null;
+			if (version != null) {
+				return version;
+			}
+			try {
+				CodeSource source = c.getProtectionDomain().getCodeSource();
+				File file = source != null ? new File(source.getLocation().toURI()) : null;
+				InputStream in;
+				if (file != null && file.isFile()) {
+					in = new FileInputStream(file);
+				} else {
+					in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+				}
+				return in == null ? null : "sha256:" + Hashing.toHexString(Hashing.sha256(in));
+			} catch (IOException | URISyntaxException | IllegalArgumentException | SecurityException e) {
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Determine the cache key for a given task. This combines the project key with
+	 * the identity and contents of every source file, and the identity of the
+	 * target.
+	 *
+	 * @param projectKey
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	private static String getTaskCacheKey(String projectKey, wybs.lang.Build.Task task) throws IOException {
+		TreeMap<String, String> sources = new TreeMap<>();
+		for (Path.Entry<?> source : task.getSources()) {
+			sources.put(source.id() + "." + source.suffix(), Hashing.toHexString(Hashing.sha256(source.inputStream())));
+		}
+		MessageDigest digest = Hashing.sha256();
+		Path.Entry<?> target = task.getTarget();
+		digest.update((projectKey + "\ntarget:" + target.id() + "." + target.suffix() + "\n").getBytes(StandardCharsets.UTF_8));
+		for (Map.Entry<String, String> e : sources.entrySet()) {
+			digest.update(("source:" + e.getKey() + "=" + e.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		return Hashing.toHexString(digest.digest());
+	}
+
+	private static byte[] readAllBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] data = new byte[8192];
+		int nRead;
+		while ((nRead = in.read(data, 0, data.length)) != -1) {
+			buffer.write(data, 0, nRead);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Create a writer for diagnostics in a given format. Human readable
+	 * diagnostics are written to the error stream, whilst machine readable
+	 * diagnostics are written to the output stream (so they are not mixed up with
+	 * other messages).
+	 *
+	 * @param format
+	 * @return
+	 */
+	private DiagnosticWriter createDiagnosticWriter(String format) {
+		PrintStream stream = format.equals("text") ? syserr : sysout;
+		return DiagnosticWriter.create(format, new BufferedWriter(new OutputStreamWriter(stream), 65536));
+	}
+
+	/**
+	 * Print out syntactic markers for a given set of tasks in a given project.
+	 * Markers are extracted from each target in parallel, but printed in task
+	 * order. The content hash of each target found to contain no markers is
+	 * recorded. A target whose contents still match next time is skipped, since
+	 * hashing it is much cheaper than decoding it. Modification times are not used
+	 * for this, since a target can be rewritten within the same tick.
+	 *
+	 * @param output
+	 * @param project
+	 * @param tasks
+	 * @throws IOException
+	 */
+	private void printSyntacticMarkers(DiagnosticWriter output, wybs.lang.Build.Project project,
+			Collection<? extends wybs.lang.Build.Task> tasks) throws IOException {
+		ExecutorService executor = environment.getExecutor();
+		StateFile state = StateFile.read(project.getRoot(), MARKER_STATE);
+		// Index all source files once, for use across all tasks
+		SourceIndex sources = new SourceIndex();
+		for (wybs.lang.Build.Task task : project.getTasks()) {
+			sources.addAll(task.getSources());
+		}
+		// Begin extracting markers from all (potentially) affected targets
+		ArrayList<wybs.lang.Build.Task> pending = new ArrayList<>(tasks);
+		ArrayList<Future<Pair<String, List<SyntacticItem.Marker>>>> futures = new ArrayList<>();
+		for (wybs.lang.Build.Task task : pending) {
+			Path.Entry<?> target = task.getTarget();
+			String previous = state.get(getMarkerKey(target));
+			futures.add(executor.submit(() -> {
+				String hash = Hashing.toHexString(Hashing.sha256(target.inputStream()));
+				if (hash.equals(previous)) {
+					// Unchanged since found to contain no markers
+					return new Pair<>(hash, Collections.<SyntacticItem.Marker>emptyList());
+				} else {
+					return new Pair<>(hash, extractSyntacticMarkers(target));
+				}
+			}));
+		}
+		// Print markers in a deterministic order
+		for (int i = 0; i != pending.size(); ++i) {
+			wybs.lang.Build.Task task = pending.get(i);
+			Path.Entry<?> target = task.getTarget();
+			Pair<String, List<SyntacticItem.Marker>> p = join(futures.get(i));
+			if (p.second().isEmpty()) {
+				state.put(getMarkerKey(target), p.first());
+			} else {
+				state.remove(getMarkerKey(target));
+				printSyntacticMarkers(output, sources, p.second());
+				output.flush();
+			}
+		}
+		state.write(project.getRoot(), MARKER_STATE);
+	}
+
 	/**
 	 * Print out syntactic markers for all entries in the build graph. This requires
 	 * going through all entries, extracting the markers and then printing them.
@@ -153,11 +820,35 @@ public class Build implements Command {
 	 */
 	public static void printSyntacticMarkers(PrintStream output, Collection<Path.Entry<?>> sources, Path.Entry<?> target) throws IOException {
 		// Extract all syntactic markers from entries in the build graph
-		List<SyntacticItem.Marker> items = extractSyntacticMarkers(target);
-		// For each marker, print out error messages appropriately
-		for (int i = 0; i != items.size(); ++i) {
-			// Log the error message
-			printSyntacticMarkers(output, sources, items.get(i));
+		DiagnosticWriter writer = DiagnosticWriter.create("text", new BufferedWriter(new OutputStreamWriter(output)));
+		printSyntacticMarkers(writer, new SourceIndex(sources), extractSyntacticMarkers(target));
+		writer.finish();
+	}
+
+	/**
+	 * Print out a given list of syntactic markers. Markers are grouped by source
+	 * file so that each file is read at most once.
+	 *
+	 * @param output
+	 * @param sources
+	 * @param items
+	 * @throws IOException
+	 */
+	public static void printSyntacticMarkers(DiagnosticWriter output, SourceIndex sources,
+			List<SyntacticItem.Marker> items) throws IOException {
+		// Group markers by source file (preserving order within each file)
+		LinkedHashMap<Path.Entry<?>, List<SyntacticItem.Marker>> groups = new LinkedHashMap<>();
+		for (SyntacticItem.Marker marker : items) {
+			Path.Entry<?> source = sources.get(marker.getSource());
+			groups.computeIfAbsent(source, k -> new ArrayList<>()).add(marker);
+		}
+		// For each file, print out error messages appropriately
+		for (Map.Entry<Path.Entry<?>, List<SyntacticItem.Marker>> group : groups.entrySet()) {
+			Path.Entry<?> source = group.getKey();
+			SourceFile file = SourceFile.read(source);
+			for (SyntacticItem.Marker marker : group.getValue()) {
+				output.write(toDiagnostic(source, file, marker));
+			}
 		}
 	}
 
@@ -166,21 +857,39 @@ public class Build implements Command {
 	 *
 	 * @param marker
 	 */
-	public static void printSyntacticMarkers(PrintStream output, Collection<Path.Entry<?>> sources, SyntacticItem.Marker marker) {
+	public static void printSyntacticMarkers(PrintStream output, Collection<Path.Entry<?>> sources, SyntacticItem.Marker marker) throws IOException {
+		//
+		Path.Entry<?> source = new SourceIndex(sources).get(marker.getSource());
 		//
-		Path.Entry<?> source = getSourceEntry(sources,marker.getSource());
+		DiagnosticWriter writer = DiagnosticWriter.create("text", new BufferedWriter(new OutputStreamWriter(output)));
+		writer.write(toDiagnostic(source, SourceFile.read(source), marker));
+		writer.finish();
+	}
+
+	/**
+	 * Convert an individual syntactic marker from a given source file into a
+	 * diagnostic.
+	 *
+	 * @param source
+	 *            The source entry (or <code>null</code> if unknown).
+	 * @param file
+	 *            The contents of the source entry (or <code>null</code> if these
+	 *            could not be read).
+	 * @param marker
+	 */
+	private static DiagnosticWriter.Diagnostic toDiagnostic(Path.Entry<?> source, SourceFile file,
+			SyntacticItem.Marker marker) {
+		String location = String.valueOf(source != null ? source.location() : marker.getSource());
 		//
 		Span span = marker.getTarget().getAncestor(AbstractCompilationUnit.Attribute.Span.class);
-		// Read the enclosing line so we can print it
-		EnclosingLine line = readEnclosingLine(source, span);
+		// Determine the enclosing line
+		EnclosingLine line = (file != null && span != null) ? file.getEnclosingLine(span) : null;
 		// Sanity check we found it
 		if(line != null) {
-			// print the error message
-			output.println(source.location() + ":" + line.lineNumber + ": " + marker.getMessage());
-			// Finally print the line highlight
-			printLineHighlight(output, line);
+			return new DiagnosticWriter.Diagnostic(location, line.lineNumber, line.columnStart() + 1,
+					line.columnEnd() + 1, line.lineText, marker.getMessage());
 		} else {
-			output.println(source.location() + ":?: " + marker.getMessage());
+			return new DiagnosticWriter.Diagnostic(location, marker.getMessage());
 		}
 	}
 
@@ -209,85 +918,165 @@ public class Build implements Command {
 		return annotated;
 	}
 
-	private static Path.Entry<?> getSourceEntry(Collection<Path.Entry<?>> sources, Path.ID id) {
-		String str = id.toString();
-		//
-		for (Path.Entry<?> s : sources) {
-			// FIXME: this is obviously a bad hack for now
-			String sid = s.id().toString();
-			if (sid.endsWith(str)) {
-				return s;
+	/**
+	 * Determine the key used to record that a given target contains no markers.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private static String getMarkerKey(Path.Entry<?> target) {
+		return "clean/" + target.id() + "." + target.suffix();
+	}
+
+	private static <T> T join(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("marker extraction interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
 			}
 		}
-		return null;
 	}
 
+	/**
+	 * Maps the identifiers recorded in syntactic markers to the source entries they
+	 * refer to. Markers identify their source relative to some (unknown) source
+	 * root and, hence, a marker identifier matches any source whose identifier ends
+	 * with the same components. To avoid scanning all sources for each marker,
+	 * every such suffix of every source identifier is indexed up front. A suffix
+	 * shared by two or more sources is ambiguous and only matches a source whose
+	 * identifier is exactly that suffix (if any). Otherwise, markers are reported
+	 * against their own identifier rather than against an arbitrary source.
+	 */
+	public static class SourceIndex {
+		private final HashMap<String, Path.Entry<?>> index = new HashMap<>();
+		private final HashMap<String, Path.Entry<?>> exact = new HashMap<>();
+		private final HashSet<String> ambiguous = new HashSet<>();
 
-	private static void printLineHighlight(PrintStream output,
-			EnclosingLine enclosing) {
-		// NOTE: in the following lines I don't print characters
-		// individually. The reason for this is that it messes up the
-		// ANT task output.
-		String str = enclosing.lineText;
+		public SourceIndex() {
+		}
 
-		if (str.length() > 0 && str.charAt(str.length() - 1) == '\n') {
-			output.print(str);
-		} else {
-			// this must be the very last line of output and, in this
-			// particular case, there is no new-line character provided.
-			// Therefore, we need to provide one ourselves!
-			output.println(str);
-		}
-		str = "";
-		for (int i = 0; i < enclosing.columnStart(); ++i) {
-			if (enclosing.lineText.charAt(i) == '\t') {
-				str += "\t";
-			} else {
-				str += " ";
+		public SourceIndex(Collection<Path.Entry<?>> sources) {
+			addAll(sources);
+		}
+
+		/**
+		 * Add a given set of source entries to this index.
+		 *
+		 * @param sources
+		 */
+		public void addAll(Collection<Path.Entry<?>> sources) {
+			for (Path.Entry<?> source : sources) {
+				Path.ID id = source.id();
+				String key = "";
+				for (int i = id.size() - 1; i >= 0; --i) {
+					key = i == id.size() - 1 ? id.get(i) : id.get(i) + "/" + key;
+					Path.Entry<?> existing = index.putIfAbsent(key, source);
+					if (existing != null && !existing.equals(source)) {
+						ambiguous.add(key);
+					}
+				}
+				exact.putIfAbsent(key, source);
 			}
 		}
-		for (int i = enclosing.columnStart(); i <= enclosing.columnEnd(); ++i) {
-			str += "^";
+
+		/**
+		 * Get the source entry corresponding to a given marker identifier, or
+		 * <code>null</code> if there is none. If the identifier is ambiguous (i.e. it
+		 * matches more than one source), then only an exact match is returned.
+		 *
+		 * @param id
+		 * @return
+		 */
+		public Path.Entry<?> get(Path.ID id) {
+			StringBuilder key = new StringBuilder();
+			for (int i = 0; i != id.size(); ++i) {
+				if (i != 0) {
+					key.append('/');
+				}
+				key.append(id.get(i));
+			}
+			String k = key.toString();
+			return ambiguous.contains(k) ? exact.get(k) : index.get(k);
 		}
-		output.println(str);
 	}
 
-	private static EnclosingLine readEnclosingLine(Path.Entry<?> entry, Attribute.Span location) {
-		int spanStart = location.getStart().get().intValue();
-		int spanEnd = location.getEnd().get().intValue();
-		int line = 0;
-		int lineStart = 0;
-		int lineEnd = 0;
-		StringBuilder text = new StringBuilder();
-		try {
-			BufferedReader in = new BufferedReader(new InputStreamReader(entry.inputStream(), "UTF-8"));
 
-			// first, read whole file
-			int len = 0;
-			char[] buf = new char[1024];
-			while ((len = in.read(buf)) != -1) {
-				text.append(buf, 0, len);
-			}
+	/**
+	 * The contents of a source file, along with an index recording where each line
+	 * begins. This allows the line enclosing a given position to be found by
+	 * binary search, rather than by scanning the file from the beginning.
+	 */
+	private static class SourceFile {
+		private final String text;
+		private final int[] lineStarts;
+		private final int lineCount;
 
-			while (lineEnd < text.length() && lineEnd <= spanStart) {
-				lineStart = lineEnd;
-				lineEnd = parseLine(text, lineEnd);
-				line = line + 1;
+		private SourceFile(String text) {
+			this.text = text;
+			int[] starts = new int[16];
+			int count = 1;
+			for (int i = 0; i < text.length(); ++i) {
+				if (text.charAt(i) == '\n' && (i + 1) < text.length()) {
+					if (count == starts.length) {
+						starts = Arrays.copyOf(starts, count * 2);
+					}
+					starts[count++] = i + 1;
+				}
 			}
-		} catch (IOException e) {
-			return null;
+			this.lineStarts = starts;
+			this.lineCount = count;
 		}
-		lineEnd = Math.min(lineEnd, text.length());
 
-		return new EnclosingLine(spanStart, spanEnd, line, lineStart, lineEnd,
-				text.substring(lineStart, lineEnd));
-	}
+		/**
+		 * Determine the line enclosing a given span.
+		 *
+		 * @param location
+		 * @return
+		 */
+		public EnclosingLine getEnclosingLine(Attribute.Span location) {
+			int spanStart = location.getStart().get().intValue();
+			int spanEnd = location.getEnd().get().intValue();
+			// Find last line starting at or before the span
+			int line = Arrays.binarySearch(lineStarts, 0, lineCount, spanStart);
+			if (line < 0) {
+				line = Math.max(0, -line - 2);
+			}
+			int lineStart = lineStarts[line];
+			int lineEnd = (line + 1) < lineCount ? lineStarts[line + 1] : text.length();
+			return new EnclosingLine(spanStart, spanEnd, line + 1, lineStart, lineEnd,
+					text.substring(lineStart, lineEnd));
+		}
 
-	private static int parseLine(StringBuilder buf, int index) {
-		while (index < buf.length() && buf.charAt(index) != '\n') {
-			index++;
+		/**
+		 * Read the contents of a given source entry, returning <code>null</code> if
+		 * this is not possible.
+		 *
+		 * @param entry
+		 * @return
+		 */
+		public static SourceFile read(Path.Entry<?> entry) {
+			if (entry == null) {
+				return null;
+			}
+			StringBuilder text = new StringBuilder();
+			try (Reader in = new InputStreamReader(entry.inputStream(), StandardCharsets.UTF_8)) {
+				int len = 0;
+				char[] buf = new char[8192];
+				while ((len = in.read(buf)) != -1) {
+					text.append(buf, 0, len);
+				}
+			} catch (IOException e) {
+				return null;
+			}
+			return new SourceFile(text.toString());
 		}
-		return index + 1;
 	}
 
 	private static class EnclosingLine {
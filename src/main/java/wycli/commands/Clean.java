@@ -13,17 +13,31 @@
 // limitations under the License.
 package wycli.commands;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import wybs.lang.Build;
 import wybs.util.Logger;
+import wybs.util.AbstractCompilationUnit.Value;
 import wycli.cfg.Configuration;
 import wycli.cfg.Configuration.Schema;
 import wycli.lang.Command;
+import wycli.util.AbstractWorkspace;
+import wyfs.lang.Content;
 import wyfs.lang.Path;
+import wyfs.util.Pair;
+import wyfs.util.Trie;
 
 public class Clean implements Command {
 	/**
@@ -42,7 +56,9 @@ public class Clean implements Command {
 
 		@Override
 		public List<Option.Descriptor> getOptionDescriptors() {
-			return Arrays.asList(Command.OPTION_FLAG("verbose", "generate verbose information", false));
+			return Arrays.asList(Command.OPTION_FLAG("verbose", "generate verbose information", false),
+					Command.OPTION_FLAG("dry-run", "report what would be removed without removing it", false),
+					Command.OPTION_FLAG("all", "clean all projects in the workspace", false));
 		}
 
 		@Override
@@ -57,11 +73,21 @@ public class Clean implements Command {
 
 		@Override
 		public Command initialise(Command.Environment environment) {
-			return new Clean(environment);
+			return new Clean(environment, System.out);
 		}
 
 	};
 
+	/**
+	 * The number of files removed by each task submitted to the executor.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * Provides a generic place to which normal output should be directed.
+	 */
+	private final PrintStream sysout;
+
 	/**
 	 * The enclosing project for this build
 	 */
@@ -72,8 +98,9 @@ public class Clean implements Command {
 	 */
 	private Logger logger;
 
-	public Clean(Command.Environment environment) {
+	public Clean(Command.Environment environment, OutputStream sysout) {
 		this.environment = environment;
+		this.sysout = new PrintStream(sysout);
 		this.logger = environment.getLogger();
 	}
 
@@ -96,17 +123,23 @@ public class Clean implements Command {
 		try {
 			// Extract options
 			boolean verbose = template.getOptions().get("verbose", Boolean.class);
-			if(project == null) {
+			boolean dryRun = template.getOptions().get("dry-run", Boolean.class);
+			boolean all = template.getOptions().get("all", Boolean.class);
+			boolean r = true;
+			if(all) {
+				// Clean all projects in workspace (without opening them)
+				r = executeAll(verbose,dryRun);
+			} else if(project == null) {
 				// Clean all projects
 				for(Build.Project p : environment.getProjects()) {
-					execute(p,verbose);
+					r &= execute(p,verbose,dryRun);
 				}
 			} else {
 				// Clean selected project
-				execute(project,verbose);
+				r = execute(project,verbose,dryRun);
 			}
 			//
-			return true;
+			return r;
 		} catch (Exception e) {
 			// FIXME: do something here??
 			e.printStackTrace();
@@ -114,26 +147,215 @@ public class Clean implements Command {
 		}
 	}
 
-	private boolean execute(Build.Project project, boolean verbose) throws IOException {
+	private boolean execute(Build.Project project, boolean verbose, boolean dryRun) throws IOException {
 		// Identify the project root
 		Path.Root root = project.getRoot();
-		// Extract all registered platforms
-		List<Build.Task> targets = project.getTasks();
-		// Remove all intermediate files
-		for (int i = 0; i != targets.size(); ++i) {
-			Path.Entry<?> target = targets.get(i).getTarget();
-			boolean ok = root.remove(target.id(), target.contentType());
-			if (verbose && ok) {
-				logger.logTimedMessage("removing  " + target.id(), 0, 0);
-			} else if (verbose) {
-				logger.logTimedMessage("failed removing  " + target.id(), 0, 0);
-				return false;
-			} else if (!ok) {
-				return false;
+		// Extract all intermediate files
+		ArrayList<Path.Entry<?>> targets = new ArrayList<>();
+		for (Build.Task task : project.getTasks()) {
+			targets.add(task.getTarget());
+		}
+		// Remove them
+		return remove(root, targets, verbose, dryRun);
+	}
+
+	/**
+	 * Clean every project listed in the workspace configuration. Rather than
+	 * opening each project (which requires resolving its dependencies and
+	 * initialising its platforms), only its configuration file is read. This
+	 * determines its target platforms and, hence, the types of target file to
+	 * remove. Projects are examined concurrently.
+	 *
+	 * @param verbose
+	 * @param dryRun
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean executeAll(boolean verbose, boolean dryRun) throws IOException {
+		if (!environment.hasKey(AbstractWorkspace.WORKSPACE_PROJECTS)) {
+			logger.logTimedMessage("no projects in workspace", 0, 0);
+			return true;
+		}
+		Value.UTF8[] names = environment.get(Value.Array.class, AbstractWorkspace.WORKSPACE_PROJECTS).toArray(Value.UTF8.class);
+		Configuration.Schema schema = AbstractWorkspace.getProjectSchema(environment);
+		ExecutorService executor = environment.getExecutor();
+		// Identify targets of each project concurrently
+		ArrayList<Future<Pair<Path.Root, List<Path.Entry<?>>>>> futures = new ArrayList<>();
+		for (Value.UTF8 name : names) {
+			Path.Root root = environment.getRoot().createRelativeRoot(Trie.fromString(name.toString()));
+			futures.add(executor.submit(() -> new Pair<>(root, findTargets(root, schema))));
+		}
+		// Remove targets
+		boolean r = true;
+		for (int i = 0; i != futures.size(); ++i) {
+			try {
+				Pair<Path.Root, List<Path.Entry<?>>> p = futures.get(i).get();
+				r &= remove(p.first(), p.second(), verbose, dryRun);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("clean interrupted", e);
+			} catch (ExecutionException e) {
+				logger.logTimedMessage("failed cleaning " + names[i] + " (" + e.getCause().getMessage() + ")", 0, 0);
+				r = false;
 			}
 		}
-		logger.logTimedMessage("cleaned " + targets.size() + " file(s)", 0, 0);
-		return true;
+		return r;
+	}
+
+	/**
+	 * Find all target files in a project without opening it. Target files are
+	 * those whose content type is the target type of a platform declared in the
+	 * project's configuration, and which are located within the target directory
+	 * configured for that platform (i.e. <code>build/<i>platform</i>/target</code>).
+	 * Platforms without a target directory distinct from the project root are
+	 * skipped, since their targets cannot be distinguished from other files of the
+	 * same type (e.g. hand-written JavaScript).
+	 *
+	 * @param root
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Path.Entry<?>> findTargets(Path.Root root, Configuration.Schema schema) throws IOException {
+		Configuration config = AbstractWorkspace.readProjectConfiguration(root, schema);
+		ArrayList<Path.Entry<?>> targets = new ArrayList<>();
+		for (Command.Platform platform : AbstractWorkspace.getTargetPlatforms(environment, config)) {
+			String dir = getTargetDirectory(config, platform);
+			if (dir == null) {
+				logger.logTimedMessage("skipping platform " + platform.getName() + " in " + root
+						+ " (no separate target directory configured)", 0, 0);
+			} else {
+				targets.addAll(root.get(Content.filter(dir + "/**", platform.getTargetType())));
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Determine the target directory configured for a given platform, relative to
+	 * the project root.
+	 *
+	 * @param config
+	 * @param platform
+	 * @return The directory, or <code>null</code> if none is configured, or it is
+	 *         the project root, or it lies outside the project.
+	 */
+	private static String getTargetDirectory(Configuration config, Command.Platform platform) {
+		Trie key = Trie.fromString("build/" + platform.getName() + "/target");
+		if (!config.getConfigurationSchema().isKey(key) || !config.hasKey(key)) {
+			return null;
+		}
+		String dir = config.get(Value.UTF8.class, key).toString().replace('\\', '/');
+		// Normalise to form "a/b"
+		while (dir.startsWith("./")) {
+			dir = dir.substring(2);
+		}
+		while (dir.endsWith("/")) {
+			dir = dir.substring(0, dir.length() - 1);
+		}
+		if (dir.isEmpty() || dir.equals(".") || dir.startsWith("/") || Arrays.asList(dir.split("/")).contains("..")) {
+			return null;
+		}
+		return dir;
+	}
+
+	/**
+	 * Remove a given set of target files from a given root. Files are removed in
+	 * batches in parallel, which matters when there are very many of them (e.g. on
+	 * a network file system). A failure to remove one file does not prevent the
+	 * others from being removed; instead, all failures are reported at the end.
+	 *
+	 * @param root
+	 * @param targets
+	 * @param verbose
+	 * @param dryRun
+	 *            If true, report what would be removed without removing anything.
+	 * @return True if all targets were successfully removed.
+	 * @throws IOException
+	 */
+	private boolean remove(Path.Root root, List<Path.Entry<?>> targets, boolean verbose, boolean dryRun)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = environment.getExecutor();
+		// Remove all files in parallel batches
+		ArrayList<Future<Batch>> futures = new ArrayList<>();
+		for (int i = 0; i < targets.size(); i += BATCH_SIZE) {
+			List<Path.Entry<?>> batch = targets.subList(i, Math.min(targets.size(), i + BATCH_SIZE));
+			futures.add(executor.submit(() -> remove(batch, verbose, dryRun)));
+		}
+		// Aggregate results
+		Batch total = new Batch();
+		for (Future<Batch> f : futures) {
+			try {
+				Batch b = f.get();
+				total.count += b.count;
+				total.bytes += b.bytes;
+				total.failures.addAll(b.failures);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("clean interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			}
+		}
+		if (!dryRun) {
+			// Ensure root reflects files removed from under it
+			root.refresh();
+		}
+		long time = System.currentTimeMillis() - start;
+		for (String failure : total.failures) {
+			logger.logTimedMessage(failure, 0, 0);
+		}
+		if (dryRun) {
+			// NOTE: reported regardless of verbosity, as this is the point of a dry run
+			sysout.println("would remove " + total.count + " file(s) (" + total.bytes + " bytes)");
+		} else {
+			logger.logTimedMessage("cleaned " + total.count + " file(s) (" + total.bytes + " bytes)", time, 0);
+		}
+		if (!total.failures.isEmpty()) {
+			logger.logTimedMessage("failed removing " + total.failures.size() + " file(s)", 0, 0);
+		}
+		return total.failures.isEmpty();
+	}
+
+	/**
+	 * Remove a single batch of target files.
+	 *
+	 * @param batch
+	 * @param verbose
+	 * @param dryRun
+	 * @return
+	 */
+	private Batch remove(List<Path.Entry<?>> batch, boolean verbose, boolean dryRun) {
+		Batch result = new Batch();
+		for (Path.Entry<?> target : batch) {
+			java.nio.file.Path file = new File(String.valueOf(target.location())).toPath();
+			try {
+				long size = Files.size(file);
+				if (!dryRun) {
+					Files.delete(file);
+				}
+				result.count++;
+				result.bytes += size;
+				if (verbose) {
+					logger.logTimedMessage((dryRun ? "would remove " : "removing ") + target.id(), 0, 0);
+				}
+			} catch (NoSuchFileException e) {
+				// Nothing to remove
+			} catch (IOException e) {
+				result.failures.add("failed removing " + target.id() + " (" + e.getMessage() + ")");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The outcome of removing a batch of files.
+	 */
+	private static class Batch {
+		private int count;
+		private long bytes;
+		private final ArrayList<String> failures = new ArrayList<>();
 	}
 
 }
@@ -0,0 +1,166 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import wybs.util.AbstractCompilationUnit.Value;
+import wycli.cfg.Configuration;
+import wycli.cfg.Configuration.Schema;
+import wycli.lang.Command;
+import wycli.util.AbstractWorkspace;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * Resolves (and downloads) all packages on which the projects in a workspace
+ * depend, ahead of any build. Afterwards, builds can proceed without accessing
+ * the network (e.g. using <code>--offline</code>).
+ */
+public class Fetch implements Command {
+	/**
+	 * The descriptor for this command.
+	 */
+	public static final Command.Descriptor DESCRIPTOR = new Command.Descriptor() {
+		@Override
+		public String getName() {
+			return "fetch";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Download all dependencies of projects in workspace";
+		}
+
+		@Override
+		public List<Option.Descriptor> getOptionDescriptors() {
+			return Collections.EMPTY_LIST;
+		}
+
+		@Override
+		public Schema getConfigurationSchema() {
+			return Configuration.EMPTY_SCHEMA;
+		}
+
+		@Override
+		public List<Descriptor> getCommands() {
+			return Collections.EMPTY_LIST;
+		}
+
+		@Override
+		public boolean requiresProject() {
+			// Opening would resolve dependencies one project at a time
+			return false;
+		}
+
+		@Override
+		public Command initialise(Command.Environment environment) {
+			return new Fetch(environment, System.out, System.err);
+		}
+
+	};
+
+	/**
+	 * Provides a generic place to which normal output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream sysout;
+
+	/**
+	 * Provides a generic place to which error output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream syserr;
+
+	/**
+	 * The enclosing environment for this command.
+	 */
+	private final Command.Environment environment;
+
+	public Fetch(Command.Environment environment, OutputStream sysout, OutputStream syserr) {
+		this.environment = environment;
+		this.sysout = new PrintStream(sysout);
+		this.syserr = new PrintStream(syserr);
+	}
+
+	@Override
+	public Descriptor getDescriptor() {
+		return DESCRIPTOR;
+	}
+
+	@Override
+	public void initialise() {
+
+	}
+
+	@Override
+	public void finalise() {
+
+	}
+
+	@Override
+	public boolean execute(Command.Project project, Template template) throws Exception {
+		long start = System.currentTimeMillis();
+		try {
+			List<Configuration> configurations = getConfigurations(project);
+			List<Path.Root> packages = environment.getPackageResolver().resolveAll(configurations);
+			// Nothing further needed from the packages themselves
+			environment.getPackageResolver().release(packages);
+			long time = System.currentTimeMillis() - start;
+			sysout.println("Fetched " + packages.size() + " package(s) for " + configurations.size()
+					+ " project(s) in " + time + "ms");
+			return true;
+		} catch (IOException e) {
+			syserr.println("error: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Determine the configurations of all projects in the workspace. Projects are
+	 * not opened for this, since that would resolve their dependencies one
+	 * project at a time. If the workspace lists no projects, then the given
+	 * project (if any) is used or, failing that, the project within which the
+	 * command was invoked.
+	 *
+	 * @param project
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Configuration> getConfigurations(Command.Project project) throws IOException {
+		ArrayList<Configuration> configurations = new ArrayList<>();
+		if (environment.hasKey(AbstractWorkspace.WORKSPACE_PROJECTS)) {
+			Value.UTF8[] names = environment.get(Value.Array.class, AbstractWorkspace.WORKSPACE_PROJECTS)
+					.toArray(Value.UTF8.class);
+			Configuration.Schema schema = AbstractWorkspace.getProjectSchema(environment);
+			for (Value.UTF8 name : names) {
+				Path.Root root = environment.getRoot().createRelativeRoot(Trie.fromString(name.toString()));
+				configurations.add(AbstractWorkspace.readProjectConfiguration(root, schema));
+			}
+		} else if (project != null) {
+			configurations.add(project);
+		} else if (environment instanceof AbstractWorkspace) {
+			Path.ID id = ((AbstractWorkspace) environment).getCurrentProject();
+			Path.Root root = environment.getRoot().createRelativeRoot(id);
+			configurations.add(AbstractWorkspace.readProjectConfiguration(root,
+					AbstractWorkspace.getProjectSchema(environment)));
+		}
+		return configurations;
+	}
+}
@@ -13,17 +13,30 @@
 // limitations under the License.
 package wycli.commands;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import wybs.io.SyntacticHeapPrinter;
 import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
 import wybs.util.Logger;
 import wybs.util.AbstractCompilationUnit.Value;
 import wycli.cfg.Configuration;
@@ -46,7 +59,26 @@ public class Inspect implements Command {
 
 	public static final List<Option.Descriptor> OPTIONS = Arrays
 			.asList(Command.OPTION_FLAG("full", "display full output (i.e. including unreachable garbage)", false),
-					Command.OPTION_FLAG("raw", "display raw output", false));
+					Command.OPTION_FLAG("raw", "display raw output", false),
+					Command.OPTION_FLAG("stats", "display statistics (e.g. item kinds and garbage) rather than contents",
+							false),
+					Command.OPTION_NONNEGATIVE_INTEGER("offset", "offset of first byte to display (for raw output)", 0),
+					Command.OPTION_NONNEGATIVE_INTEGER("length",
+							"maximum number of bytes to display (for raw output), where 0 means all", 0),
+					Command.OPTION_STRING("range", "display only items in a given index range (e.g. 10:20)", null),
+					Command.OPTION_STRING("opcode",
+							"display only items with given opcodes or kinds (e.g. 3,Table)", null),
+					Command.OPTION_STRING("root", "display only items reachable from a given item index", null));
+
+	/**
+	 * Lookup table for converting a nibble into an (uppercase) hex digit.
+	 */
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * Size of buffers used for reading and writing binary files.
+	 */
+	private static final int BUFFER_SIZE = 65536;
 
 	/**
 	 * The descriptor for this command.
@@ -110,21 +142,33 @@ public class Inspect implements Command {
 	public boolean execute(Command.Project project, Template template) throws Exception {
 		boolean garbage = template.getOptions().get("full", Boolean.class);
 		boolean raw = template.getOptions().get("raw", Boolean.class);
+		int offset = template.getOptions().get("offset", Integer.class);
+		int length = template.getOptions().get("length", Integer.class);
+		String range = template.getOptions().get("range", String.class);
+		String opcodes = template.getOptions().get("opcode", String.class);
+		String root = template.getOptions().get("root", String.class);
+		boolean selective = range != null || opcodes != null || root != null;
+		boolean stats = template.getOptions().get("stats", Boolean.class);
 		//
 		int width = project.get(Value.Int.class, INSPECT_WIDTH).unwrap().intValue();
 		int indent = project.get(Value.Int.class, INSPECT_INDENT).unwrap().intValue();
 
 		List<String> files = template.getArguments();
+		if (stats) {
+			return inspectStatistics(files);
+		}
 		for (String file : files) {
 			Content.Type<?> ct = getContentType(file);
 			Path.Entry<?> entry = getEntry(file, ct);
 			if(entry == null) {
 				out.println("unknown file: " + file);
+			} else if (selective) {
+				inspectSelection(entry, range, opcodes, root);
 			} else if(!raw && ct instanceof Content.Printable<?>){
 				Content.Printable cp = (Content.Printable<?>) ct;
 				cp.print(out, entry.read());
 			} else {
-				inspect(entry, ct, garbage, width);
+				inspect(entry, ct, garbage, width, offset, length);
 			}
 		}
 		return true;
@@ -153,75 +197,558 @@ public class Inspect implements Command {
 	 * @throws IOException
 	 */
 	public Path.Entry<?> getEntry(String file, Content.Type<?> ct) throws IOException {
-		// Strip suffix
-		file = file.replace("." + ct.getSuffix(), "");
 		// Determine path id
-		Path.ID id = Trie.fromString(file);
+		Path.ID id = Trie.fromString(stripSuffix(file, ct));
 		// Get the file from the repository root
 		return environment.getRoot().get(id, ct);
 	}
 
 	/**
-	 * Inspect a given path entry.
+	 * Inspect a given path entry. Binary files are streamed rather than being read
+	 * into memory, so that large files can be inspected efficiently.
 	 *
 	 * @param entry
 	 * @param ct
 	 * @throws IOException
 	 */
-	private void inspect(Path.Entry<?> entry, Content.Type<?> ct, boolean garbage, int width) throws IOException {
-		Object o = entry.read();
+	private void inspect(Path.Entry<?> entry, Content.Type<?> ct, boolean garbage, int width, long offset,
+			long length) throws IOException {
+		Object o = (ct == Content.BinaryFile) ? null : entry.read();
 		if (o instanceof SyntacticHeap) {
 			new SyntacticHeapPrinter(new PrintWriter(out), garbage).print((SyntacticHeap) o);
 		} else {
-			inspectBinaryFile(readAllBytes(entry.inputStream()),width);
+			try (InputStream in = entry.inputStream()) {
+				inspectBinaryFile(in, offset, length, width);
+			}
 		}
 	}
 
 	/**
-	 * Inspect a given binary file. That is a file for which we don't have a better
-	 * inspector.
+	 * Inspect a selection of items from a given entry, rather than the whole heap.
+	 * Items may be selected by index range, by opcode (or kind) and by
+	 * reachability from a given root item. Where more than one is given, only
+	 * items matching all are displayed.
 	 *
-	 * @param bytes
+	 * @param entry
+	 * @param range
+	 *            Index range of the form <code>from:to</code> (where
+	 *            <code>to</code> is exclusive and either may be omitted), or
+	 *            <code>null</code>.
+	 * @param opcodes
+	 *            Comma-separated list of opcodes or kinds, or <code>null</code>.
+	 * @param root
+	 *            Index of root item, or <code>null</code>.
+	 * @throws IOException
+	 */
+	private void inspectSelection(Path.Entry<?> entry, String range, String opcodes, String root) throws IOException {
+		HeapIndex index = getHeapIndex(entry);
+		if (index == null) {
+			out.println("not a syntactic heap: " + entry.id());
+			return;
+		}
+		int size = index.size();
+		BitSet selection = new BitSet(size);
+		selection.set(0, size);
+		try {
+			if (range != null) {
+				String[] bounds = range.split(":", -1);
+				int from = bounds[0].isEmpty() ? 0 : Integer.parseInt(bounds[0]);
+				int to = bounds.length < 2 || bounds[1].isEmpty() ? size : Integer.parseInt(bounds[1]);
+				selection.clear(0, Math.min(size, Math.max(0, from)));
+				selection.clear(Math.min(size, Math.max(0, to)), size);
+			}
+			if (opcodes != null) {
+				selection.and(index.getKinds(opcodes.split(",")));
+			}
+			if (root != null) {
+				selection.and(index.getReachable(Integer.parseInt(root)));
+			}
+		} catch (NumberFormatException e) {
+			out.println("invalid item index: " + e.getMessage());
+			return;
+		} catch (IllegalArgumentException e) {
+			out.println(e.getMessage());
+			return;
+		} catch (IndexOutOfBoundsException e) {
+			out.println("invalid root item: " + root);
+			return;
+		}
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE));
+		for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+			writer.println(index.toString(i));
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Report statistics for a given set of files, each of which may be a glob
+	 * (e.g. <code>bin/**&#47;*.wyil</code>). Files are processed in parallel, and
+	 * statistics are reported for each file followed by the aggregate across all
+	 * files. This is useful for determining where the size of build output comes
+	 * from.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean inspectStatistics(List<String> files) throws IOException {
+		ExecutorService executor = environment.getExecutor();
+		ArrayList<Path.Entry<?>> entries = new ArrayList<>();
+		boolean r = true;
+		for (String file : files) {
+			List<Path.Entry<?>> matches = getEntries(file, getContentType(file));
+			if (matches.isEmpty()) {
+				out.println("unknown file: " + file);
+				r = false;
+			}
+			entries.addAll(matches);
+		}
+		ArrayList<Future<Statistics>> futures = new ArrayList<>();
+		for (Path.Entry<?> entry : entries) {
+			futures.add(executor.submit(() -> Statistics.of(entry)));
+		}
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE));
+		Statistics total = new Statistics();
+		for (int i = 0; i != entries.size(); ++i) {
+			Statistics stats = join(futures.get(i));
+			if (stats == null) {
+				writer.println("not a syntactic heap: " + entries.get(i).id());
+			} else {
+				stats.print(entries.get(i).id() + "." + entries.get(i).contentType().getSuffix(), writer);
+				total.add(stats);
+			}
+		}
+		if (entries.size() > 1) {
+			total.print("total", writer);
+		}
+		writer.flush();
+		return r;
+	}
+
+	/**
+	 * Get all entries matching a given file, which may be a glob.
+	 *
+	 * @param file
+	 * @param ct
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Path.Entry<?>> getEntries(String file, Content.Type<?> ct) throws IOException {
+		if (file.contains("*")) {
+			String pattern = stripSuffix(file, ct);
+			ArrayList<Path.Entry<?>> matches = new ArrayList<>(environment.getRoot().get(Content.filter(pattern, ct)));
+			matches.sort((a, b) -> a.id().toString().compareTo(b.id().toString()));
+			return matches;
+		} else {
+			Path.Entry<?> entry = getEntry(file, ct);
+			return entry == null ? Collections.emptyList() : Collections.singletonList(entry);
+		}
+	}
+
+	/**
+	 * Strip the suffix of a given content type from the end of a given file name
+	 * (if present). Occurrences elsewhere in the name (e.g. a directory
+	 * <code>a.wyil/</code>) are left alone.
+	 *
+	 * @param file
+	 * @param ct
+	 * @return
+	 */
+	private static String stripSuffix(String file, Content.Type<?> ct) {
+		String suffix = "." + ct.getSuffix();
+		return file.endsWith(suffix) ? file.substring(0, file.length() - suffix.length()) : file;
+	}
+
+	private static <T> T join(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("inspection interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	/**
+	 * Statistics about the items in one or more syntactic heaps. For each kind of
+	 * item, this records the number of items, how many of those are garbage (i.e.
+	 * unreachable from the root item), their total number of operands and their
+	 * total number of data bytes.
+	 */
+	private static class Statistics {
+		private static final int COUNT = 0;
+		private static final int GARBAGE = 1;
+		private static final int OPERANDS = 2;
+		private static final int DATA = 3;
+
+		private final TreeMap<String, long[]> kinds = new TreeMap<>();
+		private long bytes;
+
+		/**
+		 * Determine the statistics for a given entry, or <code>null</code> if it is
+		 * not a syntactic heap. Only the statistics are retained, rather than the
+		 * heap itself.
+		 *
+		 * @param entry
+		 * @return
+		 * @throws IOException
+		 */
+		public static Statistics of(Path.Entry<?> entry) throws IOException {
+			// NOTE: the heap is only referenced from here, so it can be collected once
+			// its statistics are determined.
+			Object o = decode(entry);
+			if (!(o instanceof SyntacticHeap)) {
+				return null;
+			}
+			Statistics stats = new Statistics();
+			SyntacticHeap heap = (SyntacticHeap) o;
+			SyntacticItem root = heap.getRootItem();
+			BitSet reachable = root == null ? null : getReachable(heap, root.getIndex());
+			for (int i = 0; i != heap.size(); ++i) {
+				SyntacticItem item = heap.getSyntacticItem(i);
+				long[] counts = stats.kinds.computeIfAbsent(item.getClass().getSimpleName(), k -> new long[4]);
+				byte[] data = item.getData();
+				counts[COUNT]++;
+				counts[GARBAGE] += (reachable != null && !reachable.get(i)) ? 1 : 0;
+				counts[OPERANDS] += item.size();
+				counts[DATA] += data == null ? 0 : data.length;
+			}
+			stats.bytes = new File(String.valueOf(entry.location())).length();
+			return stats;
+		}
+
+		public void add(Statistics stats) {
+			for (Map.Entry<String, long[]> e : stats.kinds.entrySet()) {
+				long[] counts = kinds.computeIfAbsent(e.getKey(), k -> new long[4]);
+				for (int i = 0; i != counts.length; ++i) {
+					counts[i] += e.getValue()[i];
+				}
+			}
+			bytes += stats.bytes;
+		}
+
+		public void print(String name, PrintWriter out) {
+			long[] total = new long[4];
+			for (long[] counts : kinds.values()) {
+				for (int i = 0; i != total.length; ++i) {
+					total[i] += counts[i];
+				}
+			}
+			out.println(name + ": " + total[COUNT] + " items, " + total[GARBAGE] + " garbage ("
+					+ percent(total[GARBAGE], total[COUNT]) + "), " + bytes + " bytes");
+			out.println(String.format("  %-24s %10s %10s %10s %10s", "kind", "items", "garbage", "operands", "data"));
+			for (Map.Entry<String, long[]> e : kinds.entrySet()) {
+				long[] counts = e.getValue();
+				out.println(String.format("  %-24s %10d %10d %10d %10d", e.getKey(), counts[COUNT], counts[GARBAGE],
+						counts[OPERANDS], counts[DATA]));
+			}
+		}
+
+		private static String percent(long n, long total) {
+			return String.format("%.1f%%", total == 0 ? 0.0 : (100.0 * n) / total);
+		}
+	}
+
+	/**
+	 * Build the heap index for a given entry. If the entry is not a syntactic
+	 * heap, then <code>null</code> is returned.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private static HeapIndex getHeapIndex(Path.Entry<?> entry) throws IOException {
+		// NOTE: the heap must be decoded in full here, since the content type
+		// provides no means of decoding individual items.
+		Object o = decode(entry);
+		return o instanceof SyntacticHeap ? new HeapIndex((SyntacticHeap) o) : null;
+	}
+
+	/**
+	 * Decode the contents of a given entry. Unlike <code>Path.Entry.read()</code>,
+	 * the decoded contents are not retained by the entry and, hence, can be
+	 * collected as soon as the caller is finished with them.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object decode(Path.Entry entry) throws IOException {
+		try (InputStream in = entry.inputStream()) {
+			return entry.contentType().read(entry, in);
+		}
+	}
+
+	/**
+	 * Determine the set of items in a given heap which are reachable from a given
+	 * root item (including the root itself).
+	 *
+	 * @param heap
+	 * @param root
+	 * @return
 	 */
-	private void inspectBinaryFile(byte[] bytes, int width) {
-		for (int i = 0; i < bytes.length; i += width) {
-			out.print(String.format("0x%04X ", i));
-			// Print out databytes
-			for (int j = 0; j < width; ++j) {
-				if(j+i < bytes.length) {
-					out.print(String.format("%02X ", bytes[i+j]));
-				} else {
-					out.print("   ");
+	private static BitSet getReachable(SyntacticHeap heap, int root) {
+		if (root < 0 || root >= heap.size()) {
+			throw new IndexOutOfBoundsException();
+		}
+		BitSet r = new BitSet(heap.size());
+		// Use an explicit worklist, since heaps can be arbitrarily deep
+		ArrayList<SyntacticItem> worklist = new ArrayList<>();
+		worklist.add(heap.getSyntacticItem(root));
+		r.set(root);
+		while (!worklist.isEmpty()) {
+			SyntacticItem item = worklist.remove(worklist.size() - 1);
+			for (int i = 0; i != item.size(); ++i) {
+				SyntacticItem child = item.get(i);
+				if (child != null && !r.get(child.getIndex())) {
+					r.set(child.getIndex());
+					worklist.add(child);
 				}
 			}
-			//
-			for (int j = 0; j < width; ++j) {
-				if(j+i < bytes.length) {
-					char c = (char) bytes[i+j];
-					if(c >= 32 && c < 128) {
-						out.print(c);
-					} else {
-						out.print(".");
+		}
+		return r;
+	}
+
+	/**
+	 * Provides an index over the items of a syntactic heap, which allows items to
+	 * be selected by kind or reachability without traversing the whole heap each
+	 * time. Sets of items are represented as bitsets over item indices, and
+	 * reachability from a given root is computed once and then retained.
+	 */
+	private static class HeapIndex {
+		private final SyntacticHeap heap;
+		/**
+		 * Maps each opcode to the set of items with that opcode.
+		 */
+		private final Map<Integer, BitSet> opcodes = new HashMap<>();
+		/**
+		 * Maps each kind (i.e. the simple class name of an item) to its opcode.
+		 */
+		private final Map<String, Integer> kinds = new HashMap<>();
+		/**
+		 * Items reachable from a given root.
+		 */
+		private final Map<Integer, BitSet> reachable = new HashMap<>();
+
+		public HeapIndex(SyntacticHeap heap) {
+			this.heap = heap;
+			for (int i = 0; i != heap.size(); ++i) {
+				SyntacticItem item = heap.getSyntacticItem(i);
+				int opcode = item.getOpcode();
+				opcodes.computeIfAbsent(opcode, k -> new BitSet()).set(i);
+				kinds.putIfAbsent(item.getClass().getSimpleName(), opcode);
+			}
+		}
+
+		public int size() {
+			return heap.size();
+		}
+
+		/**
+		 * Get the set of items matching any of a given list of opcodes or kinds.
+		 * Kinds which do not occur in the heap are an error, whilst opcodes which do
+		 * not occur simply match nothing.
+		 *
+		 * @param names
+		 * @return
+		 * @throws IllegalArgumentException
+		 *             if a name is neither an opcode nor a kind in the heap.
+		 */
+		public BitSet getKinds(String[] names) {
+			BitSet r = new BitSet();
+			for (String name : names) {
+				name = name.trim();
+				Integer opcode = kinds.get(name);
+				if (opcode == null) {
+					try {
+						opcode = Integer.parseInt(name);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("unknown item kind: " + name);
 					}
 				}
+				BitSet items = opcodes.get(opcode);
+				if (items != null) {
+					r.or(items);
+				}
+			}
+			return r;
+		}
+
+		/**
+		 * Get the set of items reachable from a given root item (including the root
+		 * itself).
+		 *
+		 * @param root
+		 * @return
+		 */
+		public synchronized BitSet getReachable(int root) {
+			return reachable.computeIfAbsent(root, k -> Inspect.getReachable(heap, k));
+		}
+
+		/**
+		 * Get a single line description of a given item, which identifies its
+		 * operands by index rather than printing them.
+		 *
+		 * @param index
+		 * @return
+		 */
+		public String toString(int index) {
+			SyntacticItem item = heap.getSyntacticItem(index);
+			StringBuilder r = new StringBuilder();
+			r.append('#').append(index).append(' ').append(item.getClass().getSimpleName());
+			r.append(" (").append(item.getOpcode()).append(')');
+			r.append(" [");
+			for (int i = 0; i != item.size(); ++i) {
+				SyntacticItem child = item.get(i);
+				if (i != 0) {
+					r.append(',');
+				}
+				r.append(child == null ? "null" : "#" + child.getIndex());
+			}
+			r.append(']');
+			byte[] data = item.getData();
+			if (data != null && data.length > 0) {
+				r.append(" <");
+				for (int i = 0; i != data.length; ++i) {
+					int b = data[i] & 0xFF;
+					r.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xF]);
+				}
+				r.append('>');
 			}
-			//
-			out.println();
+			return r.toString();
 		}
 	}
 
-	private static byte[] readAllBytes(InputStream in) throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int nRead;
-		// Read bytes in max 1024 chunks
-		byte[] data = new byte[1024];
-		// Read all bytes from the input stream
-		while ((nRead = in.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, nRead);
+	/**
+	 * Inspect a given binary file. That is a file for which we don't have a better
+	 * inspector. The file is read in chunks and each line is formatted into a
+	 * reusable character buffer, which is then written through a buffered writer.
+	 *
+	 * @param in
+	 *            Stream from which to read the file.
+	 * @param offset
+	 *            Offset of the first byte to display.
+	 * @param length
+	 *            Maximum number of bytes to display, where zero means all.
+	 * @param width
+	 *            Number of bytes to display on each line.
+	 * @throws IOException
+	 */
+	private void inspectBinaryFile(InputStream in, long offset, long length, int width) throws IOException {
+		width = Math.max(1, width);
+		long remaining = length == 0 ? Long.MAX_VALUE : length;
+		skipFully(in, offset);
+		// Read whole number of lines at a time
+		byte[] bytes = new byte[Math.max(1, BUFFER_SIZE / width) * width];
+		// Address (up to 16 digits), hex bytes, ascii and newline
+		char[] line = new char[19 + (width * 4) + 1];
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.ISO_8859_1), BUFFER_SIZE);
+		long address = offset;
+		int n;
+		while (remaining > 0 && (n = readFully(in, bytes, (int) Math.min(bytes.length, remaining))) > 0) {
+			for (int i = 0; i < n; i += width) {
+				int len = formatLine(line, address + i, bytes, i, Math.min(width, n - i), width);
+				writer.write(line, 0, len);
+			}
+			address += n;
+			remaining -= n;
 		}
-		// Done
-		buffer.flush();
-		return buffer.toByteArray();
+		writer.flush();
+	}
+
+	/**
+	 * Format a single line of a binary file into a given character buffer,
+	 * returning the number of characters written.
+	 *
+	 * @param line
+	 *            Buffer to format into.
+	 * @param address
+	 *            Address of the first byte on this line.
+	 * @param bytes
+	 * @param start
+	 *            Index of first byte on this line.
+	 * @param count
+	 *            Number of bytes on this line.
+	 * @param width
+	 *            Number of bytes on a complete line.
+	 * @return
+	 */
+	private static int formatLine(char[] line, long address, byte[] bytes, int start, int count, int width) {
+		int p = 0;
+		line[p++] = '0';
+		line[p++] = 'x';
+		// Address has at least four digits
+		int digits = Math.max(4, (67 - Long.numberOfLeadingZeros(address)) / 4);
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			line[p++] = HEX_DIGITS[(int) (address >>> shift) & 0xF];
+		}
+		line[p++] = ' ';
+		// Print out databytes
+		for (int j = 0; j < width; ++j) {
+			if (j < count) {
+				int b = bytes[start + j] & 0xFF;
+				line[p++] = HEX_DIGITS[b >>> 4];
+				line[p++] = HEX_DIGITS[b & 0xF];
+			} else {
+				line[p++] = ' ';
+				line[p++] = ' ';
+			}
+			line[p++] = ' ';
+		}
+		//
+		for (int j = 0; j < count; ++j) {
+			int c = bytes[start + j] & 0xFF;
+			line[p++] = (c >= 32 && c < 128) ? (char) c : '.';
+		}
+		line[p++] = '\n';
+		return p;
+	}
+
+	/**
+	 * Read from a given stream until either a given number of bytes has been read
+	 * or the end of stream is reached.
+	 *
+	 * @param in
+	 * @param bytes
+	 * @param length
+	 * @return Number of bytes read.
+	 * @throws IOException
+	 */
+	private static int readFully(InputStream in, byte[] bytes, int length) throws IOException {
+		int total = 0;
+		int n;
+		while (total < length && (n = in.read(bytes, total, length - total)) != -1) {
+			total += n;
+		}
+		return total;
 	}
-}
 
+	/**
+	 * Skip a given number of bytes in a stream, or until the end of stream is
+	 * reached.
+	 *
+	 * @param in
+	 * @param n
+	 * @throws IOException
+	 */
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				// Distinguish end of stream from a stream which cannot skip
+				if (in.read() == -1) {
+					return;
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+}
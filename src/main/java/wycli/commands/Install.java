@@ -14,16 +14,29 @@
 package wycli.commands;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.zip.ZipEntry;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import wybs.util.Logger;
 import wybs.util.AbstractCompilationUnit.Value;
@@ -33,6 +46,11 @@ import wycli.lang.Command;
 import wycli.lang.Package;
 import wycli.lang.SemanticVersion;
 import wycli.lang.Command.Option;
+import wycli.util.Fingerprint;
+import wycli.util.Hashing;
+import wycli.util.StateFile;
+import wycli.util.ZipArchiveReader;
+import wycli.util.ZipArchiveWriter;
 import wyfs.lang.Content;
 import wyfs.lang.Path;
 import wyfs.util.Trie;
@@ -43,6 +61,19 @@ public class Install implements Command {
 	public static final Trie BUILD_INCLUDES = Trie.fromString("build/includes");
 	public static final Trie BUILD_PLATFORM_INCLUDES = Trie.fromString("build/*/includes");
 
+	/**
+	 * Prefix used for the package digest recorded in the archive comment.
+	 */
+	private static final String DIGEST_PREFIX = "sha256:";
+
+	/**
+	 * Location of the manifest recording what was packaged by the previous
+	 * install. This allows unchanged files to be identified without reading them.
+	 */
+	private static final Trie MANIFEST = Trie.fromString(".wy/install");
+	private static final String MANIFEST_DIGEST = "digest";
+	private static final String MANIFEST_FILE_PREFIX = "file/";
+
 	/**
 	 * The descriptor for this command.
 	 */
@@ -125,16 +156,40 @@ public class Install implements Command {
 			List<Value.UTF8> includes = determineIncludes(project);
 			// Determine list of files to go in package
 			List<Path.Entry<?>> files = determinePackageContents(project,includes);
-			// Construct zip file context representing package
-			ZipFile zf = createZipFile(files);
 			// Get top-level repository
 			Package.Repository repo = environment.getPackageResolver().getRepository();
 			// Extract package name from configuration
 			String name = project.get(Value.UTF8.class, Trie.fromString("package/name")).toString();
 			// Extract package version from
-			String version = project.get(Value.UTF8.class, Trie.fromString("package/version")).toString();
-			//
-			install(deploy ? 1 : 0, repo, zf, name, new SemanticVersion(version));
+			SemanticVersion version = new SemanticVersion(
+					project.get(Value.UTF8.class, Trie.fromString("package/version")).toString());
+			// Read manifest from previous install (if applicable)
+			StateFile manifest = StateFile.read(project.getRoot(), MANIFEST);
+			// Fingerprint package contents, reusing those which are unchanged
+			List<Fingerprint> fingerprints = determineFingerprints(files, manifest);
+			// Determine digest identifying package contents
+			String digest = determineDigest(files, fingerprints);
+			// Check whether package is already installed
+			Path.Entry<ZipFile> archive = repo.getArchive(name, version);
+			if (archive != null && digest.equals(readDigest(archive))) {
+				logger.logTimedMessage("Package " + name + "-v" + version + " unchanged", 0, 0);
+			} else {
+				archive = writePackage(repo, name, version, files, fingerprints, digest, manifest);
+				logger.logTimedMessage("Installed " + archive.location(), 0, 0);
+			}
+			// Record manifest for next time (unless nothing changed)
+			StateFile updated = new StateFile();
+			for (int i = 0; i != files.size(); ++i) {
+				updated.put(MANIFEST_FILE_PREFIX + getFileName(files.get(i)), fingerprints.get(i).toString());
+			}
+			updated.put(MANIFEST_DIGEST, digest);
+			if (!updated.equals(manifest)) {
+				updated.write(project.getRoot(), MANIFEST);
+			}
+			// Publish package (if requested)
+			if (deploy) {
+				repo.deploy(archive, name, version);
+			}
 			// Done
 			return true;
 		} catch (IOException e) {
@@ -167,7 +222,8 @@ public class Install implements Command {
 
 	/**
 	 * Identify which files are to be included in the package. This is determined by
-	 * the build/includes attribute in the package manifest.
+	 * the build/includes attribute in the package manifest. Files are returned
+	 * sorted by name (and without duplicates) to ensure packages are reproducible.
 	 *
 	 * @return
 	 * @throws IOException
@@ -175,7 +231,7 @@ public class Install implements Command {
 	private List<Path.Entry<?>> determinePackageContents(Build.Project project, List<Value.UTF8> includes)
 			throws IOException {
 		// Determine includes filter
-		ArrayList<Path.Entry<?>> files = new ArrayList<>();
+		TreeMap<String, Path.Entry<?>> files = new TreeMap<>();
 		// Extract root of this project
 		Path.Root root = project.getRoot();
 		// Add all files from the includes filter
@@ -183,61 +239,304 @@ public class Install implements Command {
 			// Construct a filter from the attribute itself
 			Content.Filter<?> filter = createFilter(includes.get(i).toString());
 			// Add all files matching the attribute
-			files.addAll(root.get(filter));
+			for (Path.Entry<?> file : root.get(filter)) {
+				files.put(getFileName(file), file);
+			}
 		}
 		// Done
-		return files;
+		return new ArrayList<>(files.values());
 	}
 
 	/**
-	 * Given a list of files construct a corresponding ZipFile containing them.
+	 * Fingerprint each file in a package. Files whose size and modification time
+	 * match those recorded in the manifest from the previous install are not read.
+	 * Otherwise, files are hashed in parallel.
 	 *
 	 * @param files
+	 * @param manifest
 	 * @return
 	 * @throws IOException
 	 */
-	private ZipFile createZipFile(List<Path.Entry<?>> files) throws IOException {
-		// The set of known paths
-		HashSet<Path.ID> paths = new HashSet<>();
-		// The zip file we're creating
-		ZipFile zf = new ZipFile();
-		// Add each file to zip file
+	private List<Fingerprint> determineFingerprints(List<Path.Entry<?>> files, StateFile manifest)
+			throws IOException {
+		ExecutorService executor = environment.getExecutor();
+		ArrayList<Future<Fingerprint>> futures = new ArrayList<>();
+		for (Path.Entry<?> file : files) {
+			Fingerprint previous = Fingerprint.parse(manifest.get(MANIFEST_FILE_PREFIX + getFileName(file)));
+			futures.add(executor.submit(() -> Fingerprint.of(file, previous)));
+		}
+		ArrayList<Fingerprint> fingerprints = new ArrayList<>();
+		for (Future<Fingerprint> f : futures) {
+			fingerprints.add(join(f));
+		}
+		return fingerprints;
+	}
+
+	/**
+	 * Determine a digest which uniquely identifies the contents of a package. That
+	 * is, the name and contents of every file it contains. Since packages are
+	 * reproducible, two packages with the same digest are identical.
+	 *
+	 * @param files
+	 * @param fingerprints
+	 * @return
+	 */
+	private static String determineDigest(List<Path.Entry<?>> files, List<Fingerprint> fingerprints) {
+		MessageDigest digest = Hashing.sha256();
 		for (int i = 0; i != files.size(); ++i) {
-			long start = System.currentTimeMillis();
-			Path.Entry<?> file = files.get(i);
-			// Extract path
-			addPaths(file.id().parent(), paths, zf);
-			// Construct filename for given entry
-			String filename = file.id().toString() + "." + file.contentType().getSuffix();
-			// Extract bytes representing entry
-			byte[] contents = readFileContents(file);
-			zf.add(new ZipEntry(filename), contents);
-			long time = System.currentTimeMillis() - start;
-			logger.logTimedMessage("Packaging " + file.id() + "." + file.contentType().getSuffix(), time, 0);
+			digest.update(getFileName(files.get(i)).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(fingerprints.get(i).getHash().getBytes(StandardCharsets.UTF_8));
 		}
-		//
-		return zf;
+		return DIGEST_PREFIX + Hashing.toHexString(digest.digest());
+	}
+
+	/**
+	 * Read the digest recorded in a previously installed package. This is stored
+	 * in the archive comment and, hence, can be read without touching the
+	 * remainder of the archive.
+	 *
+	 * @param archive
+	 * @return The recorded digest, or <code>null</code> if none available.
+	 */
+	private String readDigest(Path.Entry<ZipFile> archive) {
+		File file = new File(archive.location());
+		if (file.isFile()) {
+			try (ZipArchiveReader zf = new ZipArchiveReader(file)) {
+				return zf.getComment();
+			} catch (IOException e) {
+				// Treat corrupt archive as needing to be rewritten
+				logger.logTimedMessage("Failed reading " + file + ": " + e.getMessage(), 0, 0);
+			}
+		}
+		return null;
 	}
 
 	/**
-	 * Recursively install a given package into the first <code>n</code>
-	 * repositories in the chain of all repositories.
+	 * Write a package into a given repository. If the archive from the previous
+	 * install is still present (and matches the manifest), then entries for any
+	 * unchanged files are copied directly from it without being recompressed. In
+	 * all cases, the new archive is first written to a temporary file alongside
+	 * the installed one and then atomically moved into place. Thus, an installed
+	 * archive is never truncated or partially written, which matters since it may
+	 * be in use (e.g. memory mapped) by another process.
 	 *
-	 * @param count
-	 * @param repository
-	 * @param pkg
+	 * @param repo
 	 * @param name
 	 * @param version
+	 * @param files
+	 * @param fingerprints
+	 * @param digest
+	 * @param manifest
+	 * @return
 	 * @throws IOException
 	 */
-	private void install(int count, Package.Repository repository, ZipFile pkg, String name, SemanticVersion version)
+	private Path.Entry<ZipFile> writePackage(Package.Repository repo, String name, SemanticVersion version,
+			List<Path.Entry<?>> files, List<Fingerprint> fingerprints, String digest, StateFile manifest)
 			throws IOException {
-		repository.put(pkg, name, version);
-		//
-		repository = repository.getParent();
+		Path.Entry<ZipFile> archive = repo.getArchive(name, version);
+		if (archive == null) {
+			archive = repo.createArchive(name, version);
+		}
+		File file = new File(archive.location());
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			ZipArchiveReader previous = openPreviousArchive(archive, manifest);
+			try {
+				if (previous == null) {
+					// Nothing to reuse, so compress every file
+					writeZipFile(files, Collections.emptyMap(), null, digest, new FileOutputStream(tmp));
+				} else {
+					// Determine which entries can be reused
+					HashMap<String, ZipArchiveReader.Entry> entries = new HashMap<>();
+					for (ZipArchiveReader.Entry e : previous.getEntries()) {
+						entries.put(e.getName(), e);
+					}
+					HashMap<String, ZipArchiveReader.Entry> reusable = new HashMap<>();
+					for (int i = 0; i != files.size(); ++i) {
+						String filename = getFileName(files.get(i));
+						Fingerprint f = Fingerprint.parse(manifest.get(MANIFEST_FILE_PREFIX + filename));
+						ZipArchiveReader.Entry e = entries.get(filename);
+						if (e != null && f != null && f.getHash().equals(fingerprints.get(i).getHash())) {
+							reusable.put(filename, e);
+						}
+					}
+					writeZipFile(files, reusable, previous, digest, new FileOutputStream(tmp));
+				}
+			} finally {
+				// Close before replacing, as required on some platforms
+				if (previous != null) {
+					previous.close();
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+		return archive;
+	}
+
+	/**
+	 * Open the archive from a previous install, provided it corresponds to the
+	 * given manifest (i.e. it has not been replaced since).
+	 *
+	 * @param archive
+	 * @param manifest
+	 * @return The opened archive, or <code>null</code> if it cannot be reused.
+	 */
+	private ZipArchiveReader openPreviousArchive(Path.Entry<ZipFile> archive, StateFile manifest) {
+		String digest = manifest.get(MANIFEST_DIGEST);
+		if (archive != null && digest != null) {
+			File file = new File(archive.location());
+			if (file.isFile()) {
+				try {
+					ZipArchiveReader zf = new ZipArchiveReader(file);
+					if (digest.equals(zf.getComment())) {
+						return zf;
+					}
+					zf.close();
+				} catch (IOException e) {
+					// Treat corrupt archive as not reusable
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Given a list of files write a corresponding zip file containing them to a
+	 * given output stream. Files are compressed in parallel, but written in the
+	 * order given. To bound the amount of memory used, only a limited number of
+	 * files are compressed ahead of the one being written. All entries are given
+	 * the same fixed timestamp so the resulting archive depends only on the files
+	 * given.
+	 *
+	 * @param files
+	 * @param reusable
+	 *            Entries in the previous archive which can be copied as is.
+	 * @param previous
+	 *            The previous archive (or <code>null</code> if none).
+	 * @param digest
+	 *            Digest identifying the package (recorded in archive comment)
+	 * @param output
+	 * @return
+	 * @throws IOException
+	 */
+	private void writeZipFile(List<Path.Entry<?>> files, Map<String, ZipArchiveReader.Entry> reusable,
+			ZipArchiveReader previous, String digest, OutputStream output) throws IOException {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = environment.getExecutor();
+		int window = 2 * Runtime.getRuntime().availableProcessors();
+		// The set of known paths
+		HashSet<Path.ID> paths = new HashSet<>();
+		// Files currently being compressed
+		ArrayDeque<Future<ZipArchiveWriter.Entry>> pending = new ArrayDeque<>();
 		//
-		if (count > 0 && repository != null) {
-			install(count - 1, repository, pkg, name, version);
+		try (ZipArchiveWriter zf = new ZipArchiveWriter(output)) {
+			try {
+				int next = 0;
+				for (int i = 0; i != files.size(); ++i) {
+					// Keep compression window full
+					for (; next < files.size() && next <= i + window; ++next) {
+						Path.Entry<?> file = files.get(next);
+						ZipArchiveReader.Entry entry = reusable.get(getFileName(file));
+						if (entry != null) {
+							pending.add(executor.submit(() -> copyEntry(previous, entry)));
+						} else {
+							pending.add(executor.submit(() -> compressFile(file)));
+						}
+					}
+					Path.Entry<?> file = files.get(i);
+					// Extract path
+					addPaths(file.id().parent(), paths, zf);
+					// Write compressed entry
+					zf.add(join(pending.remove()));
+				}
+			} catch (IOException | RuntimeException e) {
+				// Don't finish a partially written archive
+				zf.abort();
+				throw e;
+			}
+			zf.setComment(digest);
+		} finally {
+			// Cancel any outstanding work (e.g. if an error arose)
+			for (Future<?> f : pending) {
+				f.cancel(true);
+			}
+		}
+		long time = System.currentTimeMillis() - start;
+		logger.logTimedMessage("Packaged " + files.size() + " file(s) (" + reusable.size() + " unchanged)", time, 0);
+	}
+
+	/**
+	 * Read and compress a given file, ready to be written into a package.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static ZipArchiveWriter.Entry compressFile(Path.Entry<?> file) throws IOException {
+		// Construct filename for given entry
+		String filename = getFileName(file);
+		// Extract bytes representing entry
+		byte[] contents = readFileContents(file);
+		// NOTE: raw deflate (i.e. nowrap) is required for zip files
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			return ZipArchiveWriter.Entry.deflate(filename, ZipArchiveWriter.EPOCH, contents, deflater);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Copy a given (compressed) entry from a previous archive, ready to be written
+	 * into a package.
+	 *
+	 * @param previous
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private static ZipArchiveWriter.Entry copyEntry(ZipArchiveReader previous, ZipArchiveReader.Entry entry)
+			throws IOException {
+		byte[] data = previous.readRaw(entry);
+		return new ZipArchiveWriter.Entry(entry.getName(), ZipArchiveWriter.EPOCH, entry.getMethod(), entry.getCrc(),
+				entry.getSize(), data, data.length);
+	}
+
+	/**
+	 * Determine the name of a given file within a package.
+	 *
+	 * @param file
+	 * @return
+	 */
+	private static String getFileName(Path.Entry<?> file) {
+		return file.id().toString() + "." + file.contentType().getSuffix();
+	}
+
+	/**
+	 * Wait for a given background task (e.g. compressing a file) to finish.
+	 *
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private static <T> T join(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("packaging interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
 		}
 	}
 
@@ -250,13 +549,14 @@ public class Install implements Command {
 	 * @param path
 	 * @param paths
 	 * @param zf
+	 * @throws IOException
 	 */
-	private void addPaths(Path.ID path, HashSet<Path.ID> paths, ZipFile zf) {
+	private void addPaths(Path.ID path, HashSet<Path.ID> paths, ZipArchiveWriter zf) throws IOException {
 		if(path.size() > 0 && !paths.contains(path)) {
 			addPaths(path.parent(),paths,zf);
 			// A new path encountered
 			String directory = path.toString() + "/";
-			zf.add(new ZipEntry(directory), new byte[0]);
+			zf.addDirectory(directory, ZipArchiveWriter.EPOCH);
 			paths.add(path);
 		}
 	}
@@ -268,19 +568,19 @@ public class Install implements Command {
 	 * @return
 	 * @throws IOException
 	 */
-	private byte[] readFileContents(Path.Entry<?> file) throws IOException {
-		InputStream in = file.inputStream();
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		int nRead;
-		// Read bytes in max 1024 chunks
-		byte[] data = new byte[1024];
-		// Read all bytes from the input stream
-		while ((nRead = in.read(data, 0, data.length)) != -1) {
-			buffer.write(data, 0, nRead);
+	private static byte[] readFileContents(Path.Entry<?> file) throws IOException {
+		try (InputStream in = file.inputStream()) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			int nRead;
+			// Read bytes in max 8192 chunks
+			byte[] data = new byte[8192];
+			// Read all bytes from the input stream
+			while ((nRead = in.read(data, 0, data.length)) != -1) {
+				buffer.write(data, 0, nRead);
+			}
+			// Done
+			return buffer.toByteArray();
 		}
-		// Done
-		buffer.flush();
-		return buffer.toByteArray();
 	}
 
 	/**
@@ -16,15 +16,16 @@ package wycli.commands;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import wybs.lang.Build;
 import wybs.util.Logger;
 import wybs.util.AbstractCompilationUnit.Value;
 import wycli.cfg.Configuration;
 import wycli.cfg.Configuration.Schema;
 import wycli.lang.Command;
+import wycli.lang.Metrics;
 import wyfs.lang.Path;
 import wyfs.util.Trie;
 
@@ -47,7 +48,10 @@ public class Run implements Command {
 
 		@Override
 		public List<Option.Descriptor> getOptionDescriptors() {
-			return Collections.EMPTY_LIST;
+			return Arrays.asList(
+					Command.OPTION_POSITIVE_INTEGER("repeat", "number of times to execute method", 1),
+					Command.OPTION_NONNEGATIVE_INTEGER("warmup",
+							"number of untimed executions before those timed (e.g. to allow JIT compilation)", 0));
 		}
 
 		@Override
@@ -84,19 +88,11 @@ public class Run implements Command {
 	 */
 	private final Command.Environment environment;
 
-	private final Value.UTF8 method;
-
 	public Run(Command.Environment environment, OutputStream sysout,
 			OutputStream syserr) {
 		this.environment = environment;
 		this.sysout = new PrintStream(sysout);
 		this.syserr = new PrintStream(syserr);
-		//
-		if(environment.hasKey(BUILD_MAIN)) {
-			this.method = environment.get(Value.UTF8.class, BUILD_MAIN);
-		} else {
-			this.method = null;
-		}
 	}
 
 	@Override
@@ -115,7 +111,84 @@ public class Run implements Command {
 	}
 
 	@Override
-	public boolean execute(Command.Project project, Template template) {
-		throw new IllegalArgumentException("implement me");
+	public boolean execute(Command.Project project, Template template) throws Exception {
+		int repeat = template.getOptions().get("repeat", Integer.class);
+		int warmup = template.getOptions().get("warmup", Integer.class);
+		// Determine method to execute
+		String method;
+		if (!template.getArguments().isEmpty()) {
+			method = template.getArguments().get(0);
+		} else if (project != null && project.hasKey(BUILD_MAIN)) {
+			method = project.get(Value.UTF8.class, BUILD_MAIN).toString();
+		} else {
+			syserr.println("no method to execute (e.g. set build/main in wy.toml)");
+			return false;
+		}
+		int split = method.lastIndexOf("::");
+		if (project == null || split < 0) {
+			syserr.println("invalid method \"" + method + "\" (expected e.g. \"main::main\")");
+			return false;
+		}
+		Path.ID path = Trie.fromString(method.substring(0, split));
+		String name = method.substring(split + 2);
+		// Determine platform to execute on
+		List<Command.Platform> platforms = project.getTargetPlatforms();
+		if (platforms.isEmpty()) {
+			syserr.println("no target platform to execute on");
+			return false;
+		}
+		Command.Platform platform = platforms.get(0);
+		// Ensure project is up-to-date
+		Build build = (Build) Build.DESCRIPTOR.initialise(environment);
+		if (!build.build(project)) {
+			return false;
+		}
+		try {
+			// Warm up (e.g. give JIT a chance to compile the method)
+			for (int i = 0; i < warmup; ++i) {
+				platform.execute(project, path, name);
+			}
+			// Execute method, timing each iteration
+			Metrics.Histogram histogram = environment.getMetrics().histogram("run.latency.us");
+			long[] latencies = new long[repeat];
+			for (int i = 0; i < repeat; ++i) {
+				long start = System.nanoTime();
+				platform.execute(project, path, name);
+				latencies[i] = System.nanoTime() - start;
+				histogram.record(latencies[i] / 1000);
+				if (repeat > 1) {
+					syserr.println("iteration " + (i + 1) + ": " + formatLatency(latencies[i]));
+				}
+			}
+			if (repeat > 1) {
+				printSummary(latencies);
+			}
+			return true;
+		} catch (IOException e) {
+			syserr.println("error executing " + method + " (" + e.getMessage() + ")");
+			return false;
+		}
+	}
+
+	/**
+	 * Print a summary of the latencies observed over all (timed) iterations.
+	 *
+	 * @param latencies
+	 *            Latency of each iteration (in nanoseconds).
+	 */
+	private void printSummary(long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long l : sorted) {
+			total += l;
+		}
+		syserr.println("iterations: " + sorted.length + ", min: " + formatLatency(sorted[0]) + ", mean: "
+				+ formatLatency(total / sorted.length) + ", median: " + formatLatency(sorted[sorted.length / 2])
+				+ ", max: " + formatLatency(sorted[sorted.length - 1]));
+	}
+
+	private static String formatLatency(long nanos) {
+		return String.format("%.3fms", nanos / 1e6);
 	}
 }
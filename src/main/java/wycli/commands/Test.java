@@ -0,0 +1,460 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.commands;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import wycli.cfg.Configuration;
+import wycli.cfg.Configuration.Schema;
+import wycli.lang.Command;
+import wycli.util.StateFile;
+import wyfs.util.Trie;
+
+public class Test implements Command {
+	/**
+	 * Records the outcome of each test in previous runs, such that tests which are
+	 * likely to fail can be run first.
+	 */
+	private static final Trie TEST_STATE = Trie.fromString(".wy/test");
+
+	/**
+	 * The descriptor for this command.
+	 */
+	public static final Command.Descriptor DESCRIPTOR = new Command.Descriptor() {
+		@Override
+		public String getName() {
+			return "test";
+		}
+
+		@Override
+		public String getDescription() {
+			return "Execute all tests in package";
+		}
+
+		@Override
+		public List<Option.Descriptor> getOptionDescriptors() {
+			return Arrays.asList(
+					Command.OPTION_POSITIVE_INTEGER("timeout", "maximum time for each test (in seconds)", 10),
+					Command.OPTION_POSITIVE_INTEGER("threads", "number of tests to run in parallel",
+							Runtime.getRuntime().availableProcessors()),
+					Command.OPTION_STRING("junit", "write results in JUnit XML format to a given file", null));
+		}
+
+		@Override
+		public Schema getConfigurationSchema() {
+			return Configuration.EMPTY_SCHEMA;
+		}
+
+		@Override
+		public List<Descriptor> getCommands() {
+			return Collections.EMPTY_LIST;
+		}
+
+		@Override
+		public Command initialise(Command.Environment environment) {
+			return new Test(environment, System.out, System.err);
+		}
+
+	};
+
+	/**
+	 * Provides a generic place to which normal output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream sysout;
+
+	/**
+	 * Provides a generic place to which error output should be directed. This
+	 * should eventually be replaced.
+	 */
+	private final PrintStream syserr;
+
+	/**
+	 * The enclosing environment for this command.
+	 */
+	private final Command.Environment environment;
+
+	public Test(Command.Environment environment, OutputStream sysout, OutputStream syserr) {
+		this.environment = environment;
+		this.sysout = new PrintStream(sysout);
+		this.syserr = new PrintStream(syserr);
+	}
+
+	@Override
+	public Descriptor getDescriptor() {
+		return DESCRIPTOR;
+	}
+
+	@Override
+	public void initialise() {
+
+	}
+
+	@Override
+	public void finalise() {
+
+	}
+
+	@Override
+	public boolean execute(Command.Project project, Template template) throws Exception {
+		int timeout = template.getOptions().get("timeout", Integer.class);
+		int threads = template.getOptions().get("threads", Integer.class);
+		if (project == null) {
+			syserr.println("no project to test");
+			return false;
+		}
+		// Ensure project is up-to-date
+		Build build = (Build) Build.DESCRIPTOR.initialise(environment);
+		if (!build.build(project)) {
+			return false;
+		}
+		// Discover tests
+		StateFile history = StateFile.read(project.getRoot(), TEST_STATE);
+		List<Result> tests = discoverTests(project, history);
+		// Run tests
+		long start = System.currentTimeMillis();
+		runTests(project, tests, threads, timeout);
+		long time = System.currentTimeMillis() - start;
+		// Report results
+		int failed = 0;
+		for (Result r : tests) {
+			if (r.status != Status.PASSED) {
+				syserr.println(r.test + ": " + r.status.toString().toLowerCase()
+						+ (r.message != null ? " (" + r.message + ")" : ""));
+				failed++;
+			}
+			r.record(history);
+		}
+		sysout.println("Ran " + tests.size() + " test(s) in " + time + "ms: " + (tests.size() - failed) + " passed, "
+				+ failed + " failed");
+		history.write(project.getRoot(), TEST_STATE);
+		if (template.getOptions().has("junit")) {
+			writeJUnitReport(template.getOptions().get("junit", String.class), project, tests, time);
+		}
+		return failed == 0;
+	}
+
+	/**
+	 * Discover all tests in a given project and order them such that those which
+	 * failed last time come first, followed by those which are flaky (i.e. have
+	 * changed outcome in the past) and then by those which are slow. In all cases,
+	 * ties are broken by name so the order is deterministic.
+	 *
+	 * @param project
+	 * @param history
+	 * @return
+	 * @throws IOException
+	 */
+	private List<Result> discoverTests(Command.Project project, StateFile history) throws IOException {
+		ArrayList<Result> tests = new ArrayList<>();
+		for (Command.Platform platform : project.getTargetPlatforms()) {
+			for (String test : platform.getTests(project)) {
+				Result r = new Result(platform, test, history);
+				if (r.name == null) {
+					// Report malformed names rather than failing the whole run
+					r.error("malformed test name (expected path::name)");
+				}
+				tests.add(r);
+			}
+		}
+		tests.sort(Comparator.comparing((Result r) -> r.previous != Status.FAILED && r.previous != Status.TIMEOUT)
+				.thenComparing(r -> -r.flips).thenComparing(r -> -r.duration).thenComparing(r -> r.test));
+		return tests;
+	}
+
+	/**
+	 * Run a given list of tests in parallel, with at most a given number running
+	 * at once. Tests are started in order, so those most likely to fail are
+	 * started first. Each test is subject to a given timeout, measured from when
+	 * it is submitted (which is when a worker is available for it). A test which
+	 * times out is interrupted and its worker is freed immediately, rather than
+	 * when the test eventually responds (if ever). Hence, a test which never
+	 * terminates cannot prevent others from running, and the whole run completes
+	 * within a bounded time. Tests whose outcome is already known (e.g. because
+	 * their name is malformed) are not run.
+	 *
+	 * @param project
+	 * @param tests
+	 * @param threads
+	 *            Maximum number of tests to run at once.
+	 * @param timeout
+	 *            Timeout for each test (in seconds).
+	 */
+	private void runTests(Command.Project project, List<Result> tests, int threads, int timeout) {
+		Semaphore workers = new Semaphore(threads);
+		// NOTE: threads of timed out tests are abandoned, so must not prevent exit
+		ExecutorService pool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "test");
+			t.setDaemon(true);
+			return t;
+		});
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "test-watchdog");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			for (Result r : tests) {
+				if (r.status != null) {
+					continue;
+				}
+				workers.acquire();
+				Future<?> future = pool.submit(() -> {
+					if (r.run(project)) {
+						workers.release();
+					}
+				});
+				watchdog.schedule(() -> {
+					if (r.timeout(timeout)) {
+						future.cancel(true);
+						workers.release();
+					}
+				}, timeout, TimeUnit.SECONDS);
+			}
+			// Every test either completes or times out
+			for (Result r : tests) {
+				r.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+			watchdog.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write the results of a test run to a file in JUnit XML format, as understood
+	 * by most CI systems.
+	 *
+	 * @param filename
+	 * @param project
+	 * @param tests
+	 * @param time
+	 * @throws IOException
+	 */
+	private void writeJUnitReport(String filename, Command.Project project, List<Result> tests, long time)
+			throws IOException {
+		int failures = 0;
+		int errors = 0;
+		for (Result r : tests) {
+			failures += r.status == Status.FAILED ? 1 : 0;
+			errors += r.status == Status.TIMEOUT || r.status == Status.ERROR ? 1 : 0;
+		}
+		try (Writer out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.UTF_8))) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<testsuite name=\"wy\" tests=\"" + tests.size() + "\" failures=\"" + failures
+					+ "\" errors=\"" + errors + "\" time=\"" + seconds(time) + "\">\n");
+			for (Result r : tests) {
+				String classname = r.path != null ? r.path : r.test;
+				String name = r.name != null ? r.name : r.test;
+				out.write("  <testcase classname=\"" + escape(classname) + "\" name=\"" + escape(name) + "\" time=\""
+						+ seconds(r.duration) + "\"");
+				if (r.status == Status.PASSED) {
+					out.write("/>\n");
+				} else {
+					String element = r.status == Status.FAILED ? "failure" : "error";
+					out.write(">\n    <" + element + " message=\"" + escape(String.valueOf(r.message)) + "\"/>\n");
+					out.write("  </testcase>\n");
+				}
+			}
+			out.write("</testsuite>\n");
+		}
+	}
+
+	private static String seconds(long millis) {
+		return String.format("%.3f", millis / 1000.0);
+	}
+
+	private static String escape(String str) {
+		StringBuilder r = new StringBuilder(str.length());
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '<':
+				r.append("&lt;");
+				break;
+			case '>':
+				r.append("&gt;");
+				break;
+			case '&':
+				r.append("&amp;");
+				break;
+			case '"':
+				r.append("&quot;");
+				break;
+			default:
+				if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+					r.append(' ');
+				} else {
+					r.append(c);
+				}
+			}
+		}
+		return r.toString();
+	}
+
+	private enum Status {
+		PASSED, FAILED, TIMEOUT, ERROR
+	}
+
+	/**
+	 * Records the outcome of running a single test, along with what is known about
+	 * previous runs.
+	 */
+	private static class Result {
+		private final Command.Platform platform;
+		private final String test;
+		// Components of the test name (or null if malformed)
+		private final String path;
+		private final String name;
+		// Information from previous runs
+		private final Status previous;
+		private final int flips;
+		// Outcome of this run
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile long started;
+		private volatile Status status;
+		private volatile String message;
+		private volatile long duration;
+
+		public Result(Command.Platform platform, String test, StateFile history) {
+			this.platform = platform;
+			this.test = test;
+			// Format is path::name
+			int split = test.lastIndexOf("::");
+			if (split > 0 && split + 2 < test.length()) {
+				this.path = test.substring(0, split);
+				this.name = test.substring(split + 2);
+			} else {
+				this.path = null;
+				this.name = null;
+			}
+			// Format is status,flips,duration
+			String[] fields = String.valueOf(history.get("test/" + test)).split(",");
+			Status previous = null;
+			int flips = 0;
+			long duration = 0;
+			if (fields.length == 3) {
+				try {
+					previous = Status.valueOf(fields[0]);
+					flips = Integer.parseInt(fields[1]);
+					duration = Long.parseLong(fields[2]);
+				} catch (IllegalArgumentException e) {
+					// Ignore malformed history
+				}
+			}
+			this.previous = previous;
+			this.flips = flips;
+			this.duration = duration;
+		}
+
+		/**
+		 * Run this test, unless it has already timed out.
+		 *
+		 * @param project
+		 * @return True if this determined the outcome of the test (i.e. it did not
+		 *         time out first).
+		 */
+		public boolean run(Command.Project project) {
+			started = System.nanoTime();
+			try {
+				platform.execute(project, Trie.fromString(path), name);
+				return finish(Status.PASSED, null);
+			} catch (Throwable e) {
+				return finish(Status.FAILED, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+			}
+		}
+
+		/**
+		 * Wait until the outcome of this test is known.
+		 *
+		 * @throws InterruptedException
+		 */
+		public void await() throws InterruptedException {
+			done.await();
+		}
+
+		/**
+		 * Record this test as having timed out, unless it has already completed.
+		 *
+		 * @param timeout
+		 *            (in seconds)
+		 * @return True if this determined the outcome of the test.
+		 */
+		public synchronized boolean timeout(int timeout) {
+			if (status != null) {
+				return false;
+			}
+			status = Status.TIMEOUT;
+			message = "exceeded " + timeout + "s";
+			duration = TimeUnit.SECONDS.toMillis(timeout);
+			done.countDown();
+			return true;
+		}
+
+		/**
+		 * Record this test as being in error without running it.
+		 *
+		 * @param message
+		 */
+		public synchronized void error(String message) {
+			status = Status.ERROR;
+			this.message = message;
+			duration = 0;
+			done.countDown();
+		}
+
+		private synchronized boolean finish(Status status, String message) {
+			if (this.status != null) {
+				return false;
+			}
+			this.status = status;
+			this.message = message;
+			this.duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+			done.countDown();
+			return true;
+		}
+
+		/**
+		 * Record the outcome of this test in a given history.
+		 *
+		 * @param history
+		 */
+		public void record(StateFile history) {
+			int f = (previous != null && previous != status) ? flips + 1 : flips;
+			history.put("test/" + test, status + "," + f + "," + duration);
+		}
+	}
+}
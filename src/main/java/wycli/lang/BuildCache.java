@@ -0,0 +1,46 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.lang;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Represents a store of build outputs (i.e. task targets), indexed by a key
+ * which uniquely identifies the inputs from which they were produced. Thus, a
+ * task whose key is found in the cache need not be executed, as its target can
+ * be retrieved instead. Caches may be shared between machines (e.g. across CI
+ * agents).
+ */
+public interface BuildCache extends Closeable {
+	/**
+	 * Get the contents stored for a given key, or <code>null</code> if there are
+	 * none.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] get(String key) throws IOException;
+
+	/**
+	 * Store the given contents against a given key, replacing anything stored
+	 * previously.
+	 *
+	 * @param key
+	 * @param contents
+	 * @throws IOException
+	 */
+	public void put(String key, byte[] contents) throws IOException;
+}
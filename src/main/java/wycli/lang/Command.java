@@ -14,6 +14,7 @@
 package wycli.lang;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Predicate;
@@ -126,6 +127,22 @@ public interface Command {
 		 */
 		public Meter getMeter();
 
+		/**
+		 * Get the metrics registry for this environment. This is shared with all
+		 * plugins activated within the environment.
+		 *
+		 * @return
+		 */
+		public Metrics getMetrics();
+
+		/**
+		 * Check whether this environment is offline. If so, commands should not
+		 * access the network (e.g. to fetch packages or use a remote build cache).
+		 *
+		 * @return
+		 */
+		public boolean isOffline();
+
 		/**
 		 * Get the default logger used in this environment.
 		 */
@@ -189,11 +206,32 @@ public interface Command {
 		 * @param args
 		 */
 		public void execute(Build.Project project, Path.ID path, String name, Value... args) throws IOException;
+
+		/**
+		 * Discover the test functions in the (built) targets of a given project. Each
+		 * test is identified as <code>path::name</code> and can be executed (without
+		 * arguments) using <code>execute()</code>. By default, platforms do not
+		 * support testing.
+		 *
+		 * @param project
+		 * @return
+		 * @throws IOException
+		 */
+		public default List<String> getTests(Build.Project project) throws IOException {
+			return Collections.emptyList();
+		}
 	}
 
 
 	public interface Project extends Build.Project, Configuration {
 		Environment getEnvironment();
+
+		/**
+		 * Get the list of target platforms declared for this project.
+		 *
+		 * @return
+		 */
+		List<Platform> getTargetPlatforms();
 	}
 
 	/**
@@ -241,6 +279,18 @@ public interface Command {
 		 */
 		public List<Descriptor> getCommands();
 
+		/**
+		 * Check whether this command must be given the project within which it is
+		 * invoked. If not, then the project is not opened beforehand (which avoids,
+		 * amongst other things, resolving its dependencies) and the command is given
+		 * <code>null</code> instead. By default, the project is required.
+		 *
+		 * @return
+		 */
+		public default boolean requiresProject() {
+			return true;
+		}
+
 		/**
 		 * Initialise the corresponding command in a given environment.
 		 *
@@ -579,6 +629,32 @@ public interface Command {
 	}
 
 
+	/**
+	 * A string option which must be one of a fixed set of choices.
+	 *
+	 * @param name
+	 * @param description
+	 * @param defaultValue
+	 * @param choices
+	 * @return
+	 */
+	public static Option.Descriptor OPTION_CHOICE(String name, String description, String defaultValue,
+			String... choices) {
+		String argument = "<" + String.join("|", choices) + ">";
+		return new AbstractOptionDescriptor(name, argument, description + " (default " + defaultValue + ")",
+				defaultValue) {
+			@Override
+			public Option Initialise(String arg) {
+				for (String choice : choices) {
+					if (choice.equals(arg)) {
+						return new OptionValue(this, arg);
+					}
+				}
+				throw new IllegalArgumentException("invalid argument for " + name + " (expected " + argument + ")");
+			}
+		};
+	}
+
 	/**
 	 * An string option
 	 *
@@ -0,0 +1,156 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.lang;
+
+import java.io.PrintStream;
+
+/**
+ * <p>
+ * Provides a registry of named metrics which plugins (and commands) can use to
+ * publish information about what they are doing. For example, the number of
+ * files parsed, the number of verification conditions discharged or the time
+ * taken to discharge them. Metrics are obtained once (e.g. when a module is
+ * started) and then updated as necessary.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> updating a metric (e.g. incrementing a counter or recording a
+ * value in a histogram) does not allocate and is safe to do concurrently from
+ * build threads. Looking up a metric by name, however, is not intended for the
+ * hot path.
+ * </p>
+ */
+public interface Metrics {
+
+	/**
+	 * Get the counter with a given name, creating it if it does not already exist.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Counter counter(String name);
+
+	/**
+	 * Register a gauge with a given name. The gauge is only sampled when the
+	 * metrics are reported.
+	 *
+	 * @param name
+	 * @param gauge
+	 */
+	public void gauge(String name, Gauge gauge);
+
+	/**
+	 * Get the histogram with a given name, creating it if it does not already
+	 * exist.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Histogram histogram(String name);
+
+	/**
+	 * Report the current value of all metrics in this registry to a given output
+	 * stream.
+	 *
+	 * @param output
+	 */
+	public void report(PrintStream output);
+
+	/**
+	 * A monotonically increasing count of events (e.g. files parsed).
+	 */
+	public interface Counter {
+		/**
+		 * Increment this counter by one.
+		 */
+		public void increment();
+
+		/**
+		 * Increment this counter by a given amount.
+		 *
+		 * @param n
+		 */
+		public void add(long n);
+
+		/**
+		 * Get the current value of this counter.
+		 *
+		 * @return
+		 */
+		public long get();
+	}
+
+	/**
+	 * A value which is sampled on demand (e.g. the current size of a cache).
+	 */
+	public interface Gauge {
+		/**
+		 * Sample the current value of this gauge.
+		 *
+		 * @return
+		 */
+		public long get();
+	}
+
+	/**
+	 * Records the distribution of a set of (non-negative) values, such as
+	 * latencies in nanoseconds. Values are stored in logarithmically sized buckets
+	 * and, hence, reported values have a bounded relative error.
+	 */
+	public interface Histogram {
+		/**
+		 * Record a given value in this histogram. Negative values are treated as
+		 * zero.
+		 *
+		 * @param value
+		 */
+		public void record(long value);
+
+		/**
+		 * Get the number of values recorded in this histogram.
+		 *
+		 * @return
+		 */
+		public long count();
+
+		/**
+		 * Get the smallest value recorded in this histogram (or zero if none).
+		 *
+		 * @return
+		 */
+		public long min();
+
+		/**
+		 * Get the largest value recorded in this histogram (or zero if none).
+		 *
+		 * @return
+		 */
+		public long max();
+
+		/**
+		 * Get the mean of all values recorded in this histogram.
+		 *
+		 * @return
+		 */
+		public double mean();
+
+		/**
+		 * Get the (approximate) value at a given percentile (e.g. 99.0) of this
+		 * histogram.
+		 *
+		 * @param percentile
+		 * @return
+		 */
+		public long percentile(double percentile);
+	}
+}
@@ -57,6 +57,14 @@ public interface Module {
 		 * @param ep
 		 */
 		public <T> void create(Class<T> extension, ExtensionPoint<T> ep);
+
+		/**
+		 * Get the metrics registry through which modules can publish counters,
+		 * gauges and histograms describing their activity.
+		 *
+		 * @return
+		 */
+		public Metrics getMetrics();
 	}
 
 	/**
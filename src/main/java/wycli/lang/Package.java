@@ -14,6 +14,8 @@
 package wycli.lang;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -80,6 +82,43 @@ public interface Package {
 		 */
 		List<Path.Root> resolve(Configuration cf) throws IOException;
 
+		/**
+		 * Resolve the dependencies of several configurations (e.g. all projects in
+		 * a workspace) together, returning the roots of all packages in their
+		 * combined dependency closure. By default, each configuration is simply
+		 * resolved in turn.
+		 *
+		 * @param cfs
+		 * @return
+		 * @throws IOException
+		 */
+		default List<Path.Root> resolveAll(List<Configuration> cfs) throws IOException {
+			ArrayList<Path.Root> roots = new ArrayList<>();
+			for (Configuration cf : cfs) {
+				for (Path.Root root : resolve(cf)) {
+					if (!roots.contains(root)) {
+						roots.add(root);
+					} else {
+						release(Collections.singletonList(root));
+					}
+				}
+			}
+			return roots;
+		}
+
+		/**
+		 * Release roots returned by <code>resolve()</code> or
+		 * <code>resolveAll()</code>, once the caller has finished with them (e.g.
+		 * has acquired references to them from the package cache). The resolver
+		 * may hold onto roots it returns until then, such that they cannot be
+		 * evicted. Every root returned must be released exactly once. By default,
+		 * this does nothing.
+		 *
+		 * @param roots
+		 */
+		default void release(List<Path.Root> roots) {
+		}
+
 		/**
 		 * Get the root repository associated with this package resolver.
 		 *
@@ -128,5 +167,40 @@ public interface Package {
 		 * @param pkg
 		 */
 		public void put(ZipFile pkg, String name, SemanticVersion version) throws IOException;
+
+		/**
+		 * Get the archive for a given package in this repository, or
+		 * <code>null</code> if no such package exists. This provides direct access
+		 * to the raw bytes of the package.
+		 *
+		 * @param name
+		 * @param version
+		 * @return
+		 */
+		public Path.Entry<ZipFile> getArchive(String name, SemanticVersion version) throws IOException;
+
+		/**
+		 * Create the archive for a given package in this repository, replacing any
+		 * existing archive. The package can then be streamed directly into the
+		 * repository via the archive's output stream, rather than first being
+		 * constructed in memory.
+		 *
+		 * @param name
+		 * @param version
+		 * @return
+		 */
+		public Path.Entry<ZipFile> createArchive(String name, SemanticVersion version) throws IOException;
+
+		/**
+		 * Publish a given package archive to the remote location(s) associated with
+		 * this repository. Repositories without a remote location delegate to their
+		 * parent (if any).
+		 *
+		 * @param archive
+		 * @param name
+		 * @param version
+		 * @throws IOException
+		 */
+		public void deploy(Path.Entry<ZipFile> archive, String name, SemanticVersion version) throws IOException;
 	}
 }
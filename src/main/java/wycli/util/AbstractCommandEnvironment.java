@@ -14,7 +14,10 @@
 package wycli.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 import wybs.lang.Build.Project;
@@ -22,6 +25,7 @@ import wybs.util.Logger;
 import wycli.cfg.Configuration;
 import wycli.cfg.Configuration.Schema;
 import wycli.lang.Command;
+import wycli.lang.Metrics;
 import wyfs.lang.Content;
 import wyfs.lang.Content.Registry;
 import wyfs.lang.Content.Type;
@@ -41,6 +45,15 @@ public abstract class AbstractCommandEnvironment implements Command.Environment
 	 */
 	protected ArrayList<Content.Type<?>> contentTypes = new ArrayList<>();
 
+	/**
+	 * Maps each suffix to its content type. This is rebuilt (rather than updated)
+	 * whenever a content type is registered, such that it can be read
+	 * concurrently (e.g. by build threads enumerating files) without locking.
+	 * Where more than one content type has the same suffix, the first registered
+	 * takes precedence.
+	 */
+	private volatile Map<String, Content.Type<?>> suffixes = Collections.emptyMap();
+
 	/**
 	 * List of all known commands registered by plugins.
 	 */
@@ -61,6 +74,10 @@ public abstract class AbstractCommandEnvironment implements Command.Environment
 	 */
 	protected ExecutorService executor;
 
+	/**
+	 * Metrics registry shared by all commands and plugins in this environment.
+	 */
+	protected final Metrics metrics = new StdMetrics();
 
 	public AbstractCommandEnvironment(Configuration configuration, Logger logger, ExecutorService executor) {
 		this.configuration = configuration;
@@ -81,27 +98,29 @@ public abstract class AbstractCommandEnvironment implements Command.Environment
 
 		@Override
 		public void associate(Entry<?> e) {
-			for (Content.Type<?> ct : contentTypes) {
-				if (ct.getSuffix().equals(e.suffix())) {
-					e.associate((Content.Type) ct, null);
-					return;
-				}
-			}
-			e.associate((Content.Type) Content.BinaryFile, null);
+			Content.Type<?> ct = suffixes.get(e.suffix());
+			e.associate((Content.Type) (ct != null ? ct : Content.BinaryFile), null);
 		}
 
 
 		@Override
 		public Content.Type<?> contentType(String suffix) {
-			for (Content.Type<?> ct : contentTypes) {
-				if (ct.getSuffix().equals(suffix)) {
-					return ct;
-				}
-			}
-			return null;
+			return suffixes.get(suffix);
 		}
 	};
 
+	/**
+	 * Register a new content type with this environment.
+	 *
+	 * @param contentType
+	 */
+	protected synchronized void registerContentType(Content.Type<?> contentType) {
+		contentTypes.add(contentType);
+		HashMap<String, Content.Type<?>> map = new HashMap<>(suffixes);
+		map.putIfAbsent(contentType.getSuffix(), contentType);
+		suffixes = map;
+	}
+
 
 	@Override
 	public Registry getContentRegistry() {
@@ -133,6 +152,11 @@ public abstract class AbstractCommandEnvironment implements Command.Environment
 		return executor;
 	}
 
+	@Override
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public Logger getLogger() {
 		return logger;
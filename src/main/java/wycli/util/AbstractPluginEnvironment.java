@@ -34,6 +34,7 @@ public abstract class AbstractPluginEnvironment extends AbstractCommandEnvironme
 
 	public AbstractPluginEnvironment(Configuration configuration, Logger logger, ExecutorService executor) {
 		super(configuration, logger, executor);
+		context.setMetrics(metrics);
 		createTemplateExtensionPoint();
 		createContentTypeExtensionPoint();
 		createBuildPlatformExtensionPoint();
@@ -66,7 +67,7 @@ public abstract class AbstractPluginEnvironment extends AbstractCommandEnvironme
 		context.create(Content.Type.class, new Module.ExtensionPoint<Content.Type>() {
 			@Override
 			public void register(Content.Type contentType) {
-				contentTypes.add(contentType);
+				registerContentType(contentType);
 			}
 		});
 	}
@@ -16,9 +16,16 @@ package wycli.util;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import wybs.lang.Build.Project;
 import wybs.util.Logger;
@@ -29,10 +36,12 @@ import wycli.cfg.Configuration;
 import wycli.commands.Build;
 import wycli.commands.Clean;
 import wycli.commands.Config;
+import wycli.commands.Fetch;
 import wycli.commands.Help;
 import wycli.commands.Inspect;
 import wycli.commands.Install;
 import wycli.commands.Run;
+import wycli.commands.Test;
 import wycli.lang.Command;
 import wycli.lang.Package;
 import wycli.lang.Command.Option;
@@ -47,13 +56,14 @@ import wyfs.util.ZipFile;
 
 public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 	public static final Trie BUILD_PLATFORMS = Trie.fromString("build/platforms");
+	public static final Trie WORKSPACE_PROJECTS = Trie.fromString("workspace/projects");
 
 	/**
 	 * Set of default command descriptors.
 	 */
 	public static final Command.Descriptor[] DESCRIPTORS = {
-			Build.DESCRIPTOR, Clean.DESCRIPTOR, Config.DESCRIPTOR, Help.DESCRIPTOR, Install.DESCRIPTOR,
-			Inspect.DESCRIPTOR, Run.DESCRIPTOR
+			Build.DESCRIPTOR, Clean.DESCRIPTOR, Config.DESCRIPTOR, Fetch.DESCRIPTOR, Help.DESCRIPTOR, Install.DESCRIPTOR,
+			Inspect.DESCRIPTOR, Run.DESCRIPTOR, Test.DESCRIPTOR
 	};
 
 	/**
@@ -61,7 +71,8 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 	 */
 	public static final Content.Type<?>[] CONTENT_TYPES = {
 			ConfigFile.ContentType,
-			ZipFile.ContentType
+			ZipFile.ContentType,
+			StateFile.ContentType
 	};
 
 	/**
@@ -85,8 +96,14 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 			public List<Option.Descriptor> getOptionDescriptors() {
 				return Arrays.asList(
 						Command.OPTION_FLAG("verbose", "generate verbose information about the build", false),
+						Command.OPTION_FLAG("all-projects", "apply command to all projects in the workspace", false),
+						Command.OPTION_FLAG("offline", "do not access the network (i.e. use only local packages and caches)", false),
 						Command.OPTION_POSITIVE_INTEGER("profile", "generate profiling information about the build", 0),
-						Command.OPTION_FLAG("brief", "generate brief output for syntax errors", false));
+						Command.OPTION_FLAG("brief", "generate brief output for syntax errors", false),
+						Command.OPTION_FLAG("metrics", "report metrics at the end of the command", false),
+						Command.OPTION_STRING("metrics-file", "dump metrics to a given file", null),
+						Command.OPTION_NONNEGATIVE_INTEGER("metrics-interval",
+								"seconds between periodic dumps to the metrics file (0 for only at end)", 0));
 			}
 
 			@Override
@@ -147,6 +164,21 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 		};
 	}
 
+	/**
+	 * Maximum number of projects opened concurrently by <code>openAll()</code>.
+	 */
+	private static final int OPEN_THREADS = 4;
+
+	/**
+	 * Executor used for opening projects concurrently. Opening a project blocks on
+	 * I/O (e.g. resolving its packages), so this cannot be the environment's
+	 * executor. Nor can it be the resolver's executor, since an opening project
+	 * waits for resolutions submitted to that executor and, if every thread were
+	 * occupied by such a project, none would remain to perform them. Threads are
+	 * created on demand and exit once idle.
+	 */
+	private static final ExecutorService OPEN_EXECUTOR = createExecutor();
+
 	// ========================================================================
 	// Instance Fields
 	// ========================================================================
@@ -157,9 +189,27 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 	private wybs.lang.Build.Meter meter;
 
 	/**
-	 * List of active projects.
+	 * List of active projects. Since projects may be opened concurrently, this
+	 * must be thread safe.
+	 */
+	private final ConcurrentHashMap<Path.ID, AbstractProject> projects = new ConcurrentHashMap<>();
+
+	/**
+	 * Memoises the opening of each project. This ensures that concurrent attempts
+	 * to open the same project initialise it only once, without blocking attempts
+	 * to open other projects in the meantime.
+	 */
+	private final ConcurrentHashMap<Path.ID, FutureTask<AbstractProject>> openings = new ConcurrentHashMap<>();
+
+	/**
+	 * Identifies the project within which the tool was invoked.
 	 */
-	private HashMap<Path.ID, AbstractProject> projects = new HashMap<>();
+	private Path.ID currentProject = Trie.ROOT;
+
+	/**
+	 * Packages shared by the projects in this workspace.
+	 */
+	private final PackageCache packageCache = new PackageCache(PackageCache.DEFAULT_CAPACITY);
 
 	// ========================================================================
 	// Constructor
@@ -172,7 +222,33 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 		// Add default commands
 		commandDescriptors.addAll(Arrays.asList(DESCRIPTORS));
 		// Add default content types
-		contentTypes.addAll(Arrays.asList(CONTENT_TYPES));
+		for (Content.Type<?> contentType : CONTENT_TYPES) {
+			registerContentType(contentType);
+		}
+	}
+
+	/**
+	 * Get the cache of packages shared by all projects in this workspace.
+	 *
+	 * @return
+	 */
+	public PackageCache getPackageCache() {
+		return packageCache;
+	}
+
+	/**
+	 * Get the project within which the tool was invoked. This allows commands which
+	 * are not given a project (see <code>Descriptor.requiresProject()</code>) to
+	 * locate it without opening it.
+	 *
+	 * @return
+	 */
+	public Path.ID getCurrentProject() {
+		return currentProject;
+	}
+
+	public void setCurrentProject(Path.ID currentProject) {
+		this.currentProject = currentProject;
 	}
 
 	public Command.Descriptor getCommandRoot() {
@@ -196,34 +272,208 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 	 * @throws IOException
 	 */
 	public Command.Project open(Path.ID id) throws IOException {
-		AbstractProject project = projects.get(id);
-		//
-		if (project == null) {
+		// NOTE: concurrent attempts to open the same project will block until it is
+		// initialised, rather than initialising it twice.
+		FutureTask<AbstractProject> task = new FutureTask<>(() -> {
 			Path.Root root = getRoot().createRelativeRoot(id);
 			// Create a new project record
-			project = new AbstractProject( root);
-			// Configure package directory structure
-			project.initialise();
-			// Refresh project to initialise build instances
-			project.refresh();
-			// Retain project record
+			AbstractProject project = new AbstractProject(root);
+			try {
+				// Configure package directory structure
+				project.initialise();
+				// Refresh project to initialise build instances
+				project.refresh();
+			} catch (Throwable e) {
+				project.release();
+				throw e;
+			}
+			// Done
 			projects.put(id, project);
+			return project;
+		});
+		FutureTask<AbstractProject> existing = openings.putIfAbsent(id, task);
+		if (existing == null) {
+			task.run();
+		} else {
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("opening project interrupted", e);
+		} catch (ExecutionException e) {
+			// Allow opening to be retried
+			openings.remove(id, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	/**
+	 * Open all projects listed in the workspace configuration (i.e.
+	 * <code>workspace/projects</code>). Projects are initialised concurrently,
+	 * since each requires parsing its configuration and resolving its packages.
+	 * Packages on which several projects depend are resolved only once (see
+	 * <code>StdPackageResolver</code>).
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Command.Project> openAll() throws IOException {
+		ArrayList<Future<Command.Project>> futures = new ArrayList<>();
+		if (hasKey(WORKSPACE_PROJECTS)) {
+			Value.UTF8[] names = get(Value.Array.class, WORKSPACE_PROJECTS).toArray(Value.UTF8.class);
+			for (Value.UTF8 name : names) {
+				Path.ID id = Trie.fromString(name.toString());
+				futures.add(OPEN_EXECUTOR.submit(() -> open(id)));
+			}
+		}
+		ArrayList<Command.Project> result = new ArrayList<>();
+		try {
+			for (Future<Command.Project> f : futures) {
+				result.add(f.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("opening projects interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
+		} finally {
+			// Cancel any still outstanding (i.e. when one failed)
+			for (Future<Command.Project> f : futures) {
+				f.cancel(true);
+			}
 		}
-		//
-		return project;
+		return result;
+	}
+
+	private static ExecutorService createExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(OPEN_THREADS, OPEN_THREADS, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "project-opener");
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Determine the schema for project configuration files in a given environment.
+	 * This combines the package schema with those of all build platforms and
+	 * commands.
+	 *
+	 * @param environment
+	 * @return
+	 */
+	public static Configuration.Schema getProjectSchema(Command.Environment environment) {
+		List<Command.Platform> platforms = environment.getBuildPlatforms();
+		List<Command.Descriptor> commands = environment.getCommandDescriptors();
+		Configuration.Schema[] schemas = new Configuration.Schema[platforms.size() + commands.size() + 1];
+		int index = 0;
+		schemas[index++] = Package.SCHEMA;
+		for (int i = 0; i != platforms.size(); ++i) {
+			Command.Platform platform = platforms.get(i);
+			schemas[index++] = platform.getConfigurationSchema();
+		}
+		for (int i = 0; i != commands.size(); ++i) {
+			Command.Descriptor cmd = commands.get(i);
+			schemas[index++] = cmd.getConfigurationSchema();
+		}
+		return Configuration.toCombinedSchema(schemas);
+	}
+
+	/**
+	 * Read the configuration file (i.e. <code>wy.toml</code>) of the project
+	 * with a given root. This does not otherwise initialise the project (e.g. its
+	 * dependencies are not resolved).
+	 *
+	 * @param root
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	public static Configuration readProjectConfiguration(Path.Root root, Configuration.Schema schema)
+			throws IOException {
+		Path.Entry<ConfigFile> entry = root.get(Trie.fromString("wy"), ConfigFile.ContentType);
+		if (entry == null) {
+			throw new IOException("missing configuration file wy.toml");
+		}
+		return entry.read().toConfiguration(schema, false);
+	}
+
+	/**
+	 * Get the list of declared target platforms for a project with a given
+	 * configuration. This is determined by the attribute "build.platforms" in the
+	 * project (wy.toml) build file.
+	 *
+	 * @param environment
+	 * @param configuration
+	 * @return
+	 */
+	public static List<Command.Platform> getTargetPlatforms(Command.Environment environment,
+			Configuration configuration) {
+		ArrayList<Command.Platform> targetPlatforms = new ArrayList<>();
+		// Ensure target platforms are specified
+		if (configuration.hasKey(BUILD_PLATFORMS)) {
+			Value.UTF8[] targetPlatformNames = configuration.get(Value.Array.class, BUILD_PLATFORMS)
+					.toArray(Value.UTF8.class);
+			// Get list of all build platforms.
+			List<Command.Platform> platforms = environment.getBuildPlatforms();
+			// Check each platform for inclusion
+			for (int i = 0; i != platforms.size(); ++i) {
+				Command.Platform platform = platforms.get(i);
+				// Convert name to UTF8 value (ugh)
+				Value.UTF8 name = new Value.UTF8(platform.getName().getBytes());
+				// Determine whether is a target platform or not
+				if (ArrayUtils.firstIndexOf(targetPlatformNames, name) >= 0) {
+					targetPlatforms.add(platform);
+				}
+			}
+		}
+		// Done
+		return targetPlatforms;
+	}
+
+	/**
+	 * Determine the digest identifying the contents of a given package (see
+	 * <code>MappedZipRoot.getDigest()</code>). This distinguishes two packages with
+	 * the same name and version but different contents (e.g. one reinstalled
+	 * locally).
+	 *
+	 * @param pkg
+	 * @return The digest, or <code>null</code> if this cannot be determined.
+	 */
+	public static String getPackageDigest(wybs.lang.Build.Package pkg) {
+		Path.Root root = pkg.getRoot();
+		return root instanceof MappedZipRoot ? ((MappedZipRoot) root).getDigest() : null;
 	}
 
 	/**
 	 * Close all projects within this workspace. This forces them to be flushed to
-	 * disk.
+	 * disk, and closes any packages which are no longer used.
 	 *
 	 * @throws IOException
 	 */
 	public void closeAll() throws IOException {
 		for (AbstractProject project : projects.values()) {
 			project.flush();
+			project.release();
 		}
 		projects.clear();
+		openings.clear();
+		// Close packages no longer used by any project
+		packageCache.clear();
 	}
 
 	@Override
@@ -245,24 +495,10 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 		 * @throws IOException
 		 */
 		private void initialise() throws IOException {
-			Configuration.Schema[] schemas = new Configuration.Schema[buildPlatforms.size() + commandDescriptors.size()
-					+ 1];
-			int index = 0;
-			schemas[index++] = Package.SCHEMA;
-			for (int i = 0; i != buildPlatforms.size(); ++i) {
-				Command.Platform platform = buildPlatforms.get(i);
-				schemas[index++] = platform.getConfigurationSchema();
-			}
-			for (int i = 0; i != commandDescriptors.size(); ++i) {
-				Command.Descriptor cmd = commandDescriptors.get(i);
-				schemas[index++] = cmd.getConfigurationSchema();
-			}
 			// Construct combined schema
-			Configuration.Schema schema = Configuration.toCombinedSchema(schemas);
-			//
-			ConfigFile cfg = root.get(Trie.fromString("wy"), ConfigFile.ContentType).read();
+			Configuration.Schema schema = getProjectSchema(AbstractWorkspace.this);
 			// Parse configuration
-			this.configuration = cfg.toConfiguration(schema, false);
+			this.configuration = readProjectConfiguration(root, schema);
 			// Resolve package dependencies
 			resolve(schema);
 			// initialise platforms
@@ -282,16 +518,30 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 		private void resolve(Configuration.Schema schema) throws IOException {
 			// Resolve all dependencies
 			List<Path.Root> pkgs = getPackageResolver().resolve(configuration);
-			// Construct abstract package objects
-			for(int i=0;i!=pkgs.size();++i) {
-				Path.Root pkgroot = pkgs.get(i);
-				// Read config file
-				Path.Entry<ConfigFile> entry = pkgroot.get(Trie.fromString("wy"), ConfigFile.ContentType);
-				// Convert into configuration using appropiate schema
-				Configuration pkgcfg = entry.read().toConfiguration(schema, false);
-				// Done
-				getPackages().add(new AbstractPackage(pkgroot, pkgcfg));
+			try {
+				// Construct abstract package objects
+				for(int i=0;i!=pkgs.size();++i) {
+					Path.Root pkgroot = pkgs.get(i);
+					// Read config file (or reuse that from another project)
+					Configuration pkgcfg = packageCache.acquire(pkgroot, schema);
+					// Done
+					getPackages().add(new AbstractPackage(pkgroot, pkgcfg));
+				}
+			} finally {
+				// Packages are now referenced by this project instead
+				getPackageResolver().release(pkgs);
+			}
+		}
+
+		/**
+		 * Release this project's references to its packages, allowing those no
+		 * longer used to be evicted.
+		 */
+		private void release() {
+			for (wybs.lang.Build.Package pkg : getPackages()) {
+				packageCache.release(pkg.getRoot());
 			}
+			getPackages().clear();
 		}
 
 		/**
@@ -301,26 +551,9 @@ public abstract class AbstractWorkspace extends AbstractPluginEnvironment {
 		 *
 		 * @return
 		 */
-		private List<Command.Platform> getTargetPlatforms() {
-			ArrayList<Command.Platform> targetPlatforms = new ArrayList<>();
-			// Ensure target platforms are specified
-			if (hasKey(BUILD_PLATFORMS)) {
-				Value.UTF8[] targetPlatformNames = get(Value.Array.class, BUILD_PLATFORMS).toArray(Value.UTF8.class);
-				// Get list of all build platforms.
-				List<Command.Platform> platforms = getBuildPlatforms();
-				// Check each platform for inclusion
-				for (int i = 0; i != platforms.size(); ++i) {
-					Command.Platform platform = platforms.get(i);
-					// Convert name to UTF8 value (ugh)
-					Value.UTF8 name = new Value.UTF8(platform.getName().getBytes());
-					// Determine whether is a target platform or not
-					if (ArrayUtils.firstIndexOf(targetPlatformNames, name) >= 0) {
-						targetPlatforms.add(platform);
-					}
-				}
-			}
-			// Done
-			return targetPlatforms;
+		@Override
+		public List<Command.Platform> getTargetPlatforms() {
+			return AbstractWorkspace.getTargetPlatforms(AbstractWorkspace.this, configuration);
 		}
 
 		@Override
@@ -0,0 +1,210 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Value;
+import wycli.cfg.ConfigFile;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * Records the outcome of the last successful build of a project, such that a
+ * subsequent invocation can determine whether the project is up-to-date without
+ * reading (let alone parsing) its source files. For each task, this records the
+ * fingerprint of every source file (which also captures the dependency edges
+ * from the task to its sources) and of its target. The project's build
+ * configuration, resolved packages (including their digests) and the versions
+ * of the build platforms are also recorded, since these affect every task.
+ */
+public class BuildDatabase {
+	/**
+	 * Location of the database within the project root.
+	 */
+	public static final Trie ID = Trie.fromString(".wy/build");
+
+	private static final Trie CONFIG_ID = Trie.fromString("wy");
+
+	private final StateFile state;
+
+	private BuildDatabase(StateFile state) {
+		this.state = state;
+	}
+
+	/**
+	 * Determine whether a given project is up-to-date with respect to this
+	 * database. That is, whether its configuration, packages, platform versions
+	 * and the sources of every task are unchanged since the database was recorded
+	 * and every target remains as it was produced. Files whose size and
+	 * modification time are unchanged are not read.
+	 *
+	 * @param project
+	 * @param platforms
+	 *            The versions of the build platforms, or <code>null</code> if
+	 *            these are unknown (in which case the project is never
+	 *            up-to-date).
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(Build.Project project, String platforms) throws IOException {
+		if (platforms == null || !platforms.equals(state.get("platforms"))
+				|| !matches(state.get("config"), getConfigEntry(project))
+				|| !getPackages(project).equals(state.get("packages"))) {
+			return false;
+		}
+		int count = 0;
+		for (Build.Task task : project.getTasks()) {
+			count++;
+			String prefix = getTaskPrefix(task);
+			Map<String, String> sources = state.getAll(prefix + "source/");
+			if (sources.size() != task.getSources().size() || !matches(state.get(prefix + "target"), task.getTarget())) {
+				return false;
+			}
+			for (Path.Entry<?> source : task.getSources()) {
+				if (!matches(sources.get(getKey(source)), source)) {
+					return false;
+				}
+			}
+		}
+		// Check no tasks have been removed
+		return Integer.toString(count).equals(state.get("tasks"));
+	}
+
+	/**
+	 * Record the current state of a given project, which is assumed to have just
+	 * been successfully built with the given platform versions.
+	 *
+	 * @param project
+	 * @param platforms
+	 * @throws IOException
+	 */
+	public void record(Build.Project project, String platforms) throws IOException {
+		// Retain previous fingerprints to avoid reading unchanged files
+		Map<String, String> previous = state.getAll("");
+		state.clear("");
+		Path.Entry<?> config = getConfigEntry(project);
+		if (config != null) {
+			put("config", config, previous);
+		}
+		state.put("packages", getPackages(project));
+		state.put("platforms", platforms);
+		int count = 0;
+		for (Build.Task task : project.getTasks()) {
+			String prefix = getTaskPrefix(task);
+			for (Path.Entry<?> source : task.getSources()) {
+				put(prefix + "source/" + getKey(source), source, previous);
+			}
+			put(prefix + "target", task.getTarget(), previous);
+			count++;
+		}
+		state.put("tasks", Integer.toString(count));
+	}
+
+	/**
+	 * Forget everything recorded (e.g. because the build failed).
+	 */
+	public void clear() {
+		state.clear("");
+	}
+
+	/**
+	 * Read the build database for a given project root, returning an empty
+	 * database if none exists.
+	 *
+	 * @param root
+	 * @return
+	 */
+	public static BuildDatabase read(Path.Root root) {
+		return new BuildDatabase(StateFile.read(root, ID));
+	}
+
+	/**
+	 * Write this database to a given project root.
+	 *
+	 * @param root
+	 * @throws IOException
+	 */
+	public void write(Path.Root root) throws IOException {
+		state.write(root, ID);
+	}
+
+	/**
+	 * Check whether a given entry matches a recorded fingerprint. The entry is only
+	 * read if its size or modification time has changed.
+	 *
+	 * @param recorded
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean matches(String recorded, Path.Entry<?> entry) throws IOException {
+		Fingerprint previous = Fingerprint.parse(recorded);
+		if (previous == null || entry == null || !new File(String.valueOf(entry.location())).isFile()) {
+			return false;
+		}
+		return previous.getHash().equals(Fingerprint.of(entry, previous).getHash());
+	}
+
+	/**
+	 * Record the fingerprint of a given entry under a given key, reusing the
+	 * previously recorded fingerprint where possible.
+	 *
+	 * @param key
+	 * @param entry
+	 * @param previous
+	 * @throws IOException
+	 */
+	private void put(String key, Path.Entry<?> entry, Map<String, String> previous) throws IOException {
+		Fingerprint f = Fingerprint.of(entry, Fingerprint.parse(previous.get(key)));
+		state.put(key, f.toString());
+	}
+
+	private static Path.Entry<?> getConfigEntry(Build.Project project) throws IOException {
+		return project.getRoot().get(CONFIG_ID, ConfigFile.ContentType);
+	}
+
+	/**
+	 * Determine a string which identifies the packages a project was built
+	 * against. This includes the digest of each package (where known), since a
+	 * package can be reinstalled with different contents but the same version.
+	 *
+	 * @param project
+	 * @return
+	 */
+	private static String getPackages(Build.Project project) {
+		ArrayList<String> pkgs = new ArrayList<>();
+		for (Build.Package pkg : project.getPackages()) {
+			Value.UTF8 name = pkg.get(Value.UTF8.class, Trie.fromString("package/name"));
+			Value.UTF8 version = pkg.get(Value.UTF8.class, Trie.fromString("package/version"));
+			String digest = AbstractWorkspace.getPackageDigest(pkg);
+			pkgs.add(name + "-v" + version + (digest != null ? "@" + digest : ""));
+		}
+		Collections.sort(pkgs);
+		return String.join(",", pkgs);
+	}
+
+	private static String getTaskPrefix(Build.Task task) {
+		return "task/" + getKey(task.getTarget()) + "/";
+	}
+
+	private static String getKey(Path.Entry<?> entry) {
+		return entry.id() + "." + entry.suffix();
+	}
+}
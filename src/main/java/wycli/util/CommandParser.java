@@ -245,7 +245,7 @@ public class CommandParser {
 			for (int i = 0; i != descriptors.length; ++i) {
 				Option.Descriptor d = descriptors[i];
 				Object val = d.getDefaultValue();
-				if (kind.isInstance(val)) {
+				if (d.getName().equals(name) && kind.isInstance(val)) {
 					return (T) val;
 				}
 			}
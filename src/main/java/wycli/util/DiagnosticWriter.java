@@ -0,0 +1,300 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Responsible for writing diagnostics (e.g. syntax errors) produced by a build
+ * in a given format. Diagnostics are written as they are reported, rather than
+ * being accumulated first, so that they can be consumed incrementally (e.g. by
+ * an IDE). The underlying writer should be buffered.
+ */
+public abstract class DiagnosticWriter implements Flushable {
+	/**
+	 * The set of supported formats.
+	 */
+	public static final String[] FORMATS = { "text", "json", "sarif" };
+
+	protected final Writer output;
+
+	public DiagnosticWriter(Writer output) {
+		this.output = output;
+	}
+
+	/**
+	 * Write a single diagnostic.
+	 *
+	 * @param diagnostic
+	 * @throws IOException
+	 */
+	public abstract void write(Diagnostic diagnostic) throws IOException;
+
+	/**
+	 * Indicate that no further diagnostics will be written. This completes the
+	 * output (where necessary) and flushes it, but does not close the underlying
+	 * writer.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException {
+		output.flush();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	/**
+	 * Construct a diagnostic writer for a given format.
+	 *
+	 * @param format
+	 *            One of the supported formats (see <code>FORMATS</code>).
+	 * @param output
+	 * @return
+	 */
+	public static DiagnosticWriter create(String format, Writer output) {
+		switch (format) {
+		case "text":
+			return new Text(output);
+		case "json":
+			return new Json(output);
+		case "sarif":
+			return new Sarif(output);
+		default:
+			throw new IllegalArgumentException("unknown diagnostic format \"" + format + "\"");
+		}
+	}
+
+	/**
+	 * Describes a single diagnostic. Line numbers and columns start from one,
+	 * whilst the column range is inclusive. If the location within the file is not
+	 * known, then the line number is zero.
+	 */
+	public static class Diagnostic {
+		private final String file;
+		private final int line;
+		private final int columnStart;
+		private final int columnEnd;
+		private final String lineText;
+		private final String message;
+
+		public Diagnostic(String file, String message) {
+			this(file, 0, 0, 0, null, message);
+		}
+
+		public Diagnostic(String file, int line, int columnStart, int columnEnd, String lineText, String message) {
+			this.file = file;
+			this.line = line;
+			this.columnStart = columnStart;
+			this.columnEnd = columnEnd;
+			this.lineText = lineText;
+			this.message = message;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public int getColumnStart() {
+			return columnStart;
+		}
+
+		public int getColumnEnd() {
+			return columnEnd;
+		}
+
+		/**
+		 * Get the text of the enclosing line (or <code>null</code> if unknown).
+		 *
+		 * @return
+		 */
+		public String getLineText() {
+			return lineText;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	/**
+	 * Human readable output, where the offending part of each line is highlighted.
+	 */
+	private static class Text extends DiagnosticWriter {
+		public Text(Writer output) {
+			super(output);
+		}
+
+		@Override
+		public void write(Diagnostic d) throws IOException {
+			if (d.line > 0) {
+				output.write(d.file + ":" + d.line + ": " + d.message + "\n");
+				writeLineHighlight(d);
+			} else {
+				output.write(d.file + ":?: " + d.message + "\n");
+			}
+		}
+
+		private void writeLineHighlight(Diagnostic d) throws IOException {
+			String str = d.lineText;
+			output.write(str);
+			if (str.length() == 0 || str.charAt(str.length() - 1) != '\n') {
+				// this must be the very last line of output and, in this
+				// particular case, there is no new-line character provided.
+				// Therefore, we need to provide one ourselves!
+				output.write('\n');
+			}
+			StringBuilder highlight = new StringBuilder();
+			int columnStart = Math.min(d.columnStart - 1, str.length());
+			for (int i = 0; i < columnStart; ++i) {
+				highlight.append(str.charAt(i) == '\t' ? '\t' : ' ');
+			}
+			for (int i = columnStart; i < d.columnEnd; ++i) {
+				highlight.append('^');
+			}
+			highlight.append('\n');
+			output.write(highlight.toString());
+		}
+	}
+
+	/**
+	 * Output as a sequence of JSON objects, one per line (i.e. "JSON Lines"). This
+	 * allows diagnostics to be consumed as they arrive.
+	 */
+	private static class Json extends DiagnosticWriter {
+		public Json(Writer output) {
+			super(output);
+		}
+
+		@Override
+		public void write(Diagnostic d) throws IOException {
+			StringBuilder r = new StringBuilder();
+			r.append("{\"file\":");
+			quote(r, d.file);
+			if (d.line > 0) {
+				r.append(",\"line\":").append(d.line);
+				r.append(",\"columnStart\":").append(d.columnStart);
+				r.append(",\"columnEnd\":").append(d.columnEnd);
+			}
+			r.append(",\"message\":");
+			quote(r, d.message);
+			r.append("}\n");
+			output.write(r.toString());
+		}
+	}
+
+	/**
+	 * Output in the Static Analysis Results Interchange Format (SARIF). The
+	 * document is written incrementally, with the enclosing structure being
+	 * completed by <code>finish()</code>.
+	 */
+	private static class Sarif extends DiagnosticWriter {
+		private boolean started = false;
+		private boolean first = true;
+
+		public Sarif(Writer output) {
+			super(output);
+		}
+
+		@Override
+		public void write(Diagnostic d) throws IOException {
+			start();
+			StringBuilder r = new StringBuilder();
+			r.append(first ? "\n" : ",\n");
+			r.append("{\"ruleId\":\"syntax\",\"level\":\"error\",\"message\":{\"text\":");
+			quote(r, d.message);
+			r.append("},\"locations\":[{\"physicalLocation\":{\"artifactLocation\":{\"uri\":");
+			quote(r, toURI(d.file));
+			r.append('}');
+			if (d.line > 0) {
+				// NOTE: SARIF end columns are exclusive
+				r.append(",\"region\":{\"startLine\":").append(d.line);
+				r.append(",\"startColumn\":").append(d.columnStart);
+				r.append(",\"endColumn\":").append(d.columnEnd + 1).append('}');
+			}
+			r.append("}}]}");
+			output.write(r.toString());
+			first = false;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			start();
+			output.write("\n]}]}\n");
+			output.flush();
+		}
+
+		private void start() throws IOException {
+			if (!started) {
+				output.write("{\"$schema\":\"https://json.schemastore.org/sarif-2.1.0.json\",\"version\":\"2.1.0\",");
+				output.write("\"runs\":[{\"tool\":{\"driver\":{\"name\":\"wy\"}},\"results\":[");
+				started = true;
+			}
+		}
+
+		private static String toURI(String file) {
+			return new File(file).toURI().toString();
+		}
+	}
+
+	/**
+	 * Append a given string as a quoted JSON string. A <code>null</code> string
+	 * (e.g. a marker without a message) is treated as empty.
+	 *
+	 * @param r
+	 * @param str
+	 */
+	private static void quote(StringBuilder r, String str) {
+		if (str == null) {
+			str = "";
+		}
+		r.append('"');
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '"':
+				r.append("\\\"");
+				break;
+			case '\\':
+				r.append("\\\\");
+				break;
+			case '\n':
+				r.append("\\n");
+				break;
+			case '\r':
+				r.append("\\r");
+				break;
+			case '\t':
+				r.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					r.append(String.format("\\u%04x", (int) c));
+				} else {
+					r.append(c);
+				}
+			}
+		}
+		r.append('"');
+	}
+}
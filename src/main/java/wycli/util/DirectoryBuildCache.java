@@ -0,0 +1,104 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+
+import wycli.cfg.Configuration;
+import wycli.lang.BuildCache;
+import wyfs.util.Trie;
+
+/**
+ * A build cache stored in a directory on the local filesystem. Entries are
+ * spread across subdirectories based on the first two characters of their key.
+ * A cache may have a parent (e.g. a remote cache) which is consulted on a miss,
+ * with anything found being retained locally.
+ */
+public class DirectoryBuildCache implements BuildCache {
+
+	public static final Trie CACHE_DIR = Trie.fromString("cache/dir");
+
+	/**
+	 * Schema for global configuration (i.e. which applies to all projects for a given user).
+	 */
+	public static Configuration.Schema SCHEMA = Configuration
+			.fromArray(Configuration.UNBOUND_STRING(CACHE_DIR, "local build cache directory", false));
+
+	private final File dir;
+	private final BuildCache parent;
+
+	public DirectoryBuildCache(File dir, BuildCache parent) {
+		this.dir = dir;
+		this.parent = parent;
+	}
+
+	@Override
+	public byte[] get(String key) throws IOException {
+		try {
+			return Files.readAllBytes(getFile(key).toPath());
+		} catch (NoSuchFileException e) {
+			if (parent != null) {
+				byte[] contents = parent.get(key);
+				if (contents != null) {
+					store(key, contents);
+				}
+				return contents;
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] contents) throws IOException {
+		store(key, contents);
+		if (parent != null) {
+			parent.put(key, contents);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (parent != null) {
+			parent.close();
+		}
+	}
+
+	/**
+	 * Store an entry in this cache. This is done atomically, so that concurrent
+	 * builds never see a partially written entry.
+	 *
+	 * @param key
+	 * @param contents
+	 * @throws IOException
+	 */
+	private void store(String key, byte[] contents) throws IOException {
+		File file = getFile(key);
+		file.getParentFile().mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			Files.write(tmp.toPath(), contents);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(new File(dir, key.substring(0, Math.min(2, key.length()))), key);
+	}
+}
@@ -0,0 +1,129 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import wyfs.lang.Path;
+
+/**
+ * Identifies the contents of a file by its size, modification time and content
+ * hash. The size and modification time are cheap to obtain and, if neither has
+ * changed since a previous fingerprint was taken, the (expensive) content hash
+ * is assumed unchanged as well.
+ */
+public class Fingerprint {
+	private final long size;
+	private final long lastModified;
+	private final String hash;
+
+	public Fingerprint(long size, long lastModified, String hash) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.hash = hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get the SHA-256 hash of the file contents (as a hex string).
+	 *
+	 * @return
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o instanceof Fingerprint) {
+			Fingerprint f = (Fingerprint) o;
+			return size == f.size && lastModified == f.lastModified && hash.equals(f.hash);
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return size + "," + lastModified + "," + hash;
+	}
+
+	/**
+	 * Parse a fingerprint from its string representation (see
+	 * <code>toString()</code>), returning <code>null</code> if it is malformed.
+	 *
+	 * @param str
+	 * @return
+	 */
+	public static Fingerprint parse(String str) {
+		if (str != null) {
+			String[] parts = str.split(",");
+			if (parts.length == 3) {
+				try {
+					return new Fingerprint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+				} catch (NumberFormatException e) {
+					// fall through
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Take the fingerprint of a given entry. If the entry's size and modification
+	 * time match those of a previous fingerprint, then that is returned without
+	 * reading the entry.
+	 *
+	 * @param entry
+	 * @param previous
+	 *            Previous fingerprint of this entry (or <code>null</code>).
+	 * @return
+	 * @throws IOException
+	 */
+	public static Fingerprint of(Path.Entry<?> entry, Fingerprint previous) throws IOException {
+		long size = sizeOf(entry);
+		long lastModified = entry.lastModified();
+		if (previous != null && size >= 0 && previous.size == size && previous.lastModified == lastModified) {
+			return previous;
+		} else {
+			String hash = Hashing.toHexString(Hashing.sha256(entry.inputStream()));
+			return new Fingerprint(size, lastModified, hash);
+		}
+	}
+
+	/**
+	 * Determine the size of a given entry without reading it, or
+	 * <code>-1</code> if this is not possible (e.g. because it is not backed by a
+	 * file on disk).
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public static long sizeOf(Path.Entry<?> entry) {
+		File file = new File(entry.location());
+		return file.isFile() ? file.length() : -1;
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for computing content hashes (e.g. of files being packaged or
+ * built).
+ */
+public class Hashing {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Construct a fresh SHA-256 message digest.
+	 *
+	 * @return
+	 */
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Compute the SHA-256 hash of all remaining bytes in a given input stream.
+	 * The stream is closed afterwards.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] sha256(InputStream in) throws IOException {
+		MessageDigest digest = sha256();
+		try {
+			byte[] data = new byte[8192];
+			int nRead;
+			while ((nRead = in.read(data, 0, data.length)) != -1) {
+				digest.update(data, 0, nRead);
+			}
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Convert a given array of bytes into a lowercase hexadecimal string.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static String toHexString(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i != bytes.length; ++i) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[(2 * i) + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+}
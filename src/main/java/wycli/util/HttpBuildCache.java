@@ -0,0 +1,119 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.IOException;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import wycli.cfg.Configuration;
+import wycli.lang.BuildCache;
+import wyfs.util.Trie;
+
+/**
+ * A build cache accessed over HTTP. Entries are retrieved with a
+ * <code>GET</code> request to <code>${URL}/${KEY}</code> and stored with a
+ * <code>PUT</code> request to the same location. Any server supporting this
+ * (e.g. a simple WebDAV server) can be used.
+ */
+public class HttpBuildCache implements BuildCache {
+
+	public static final Trie CACHE_URL = Trie.fromString("cache/url");
+	public static final Trie CACHE_COOKIE = Trie.fromString("cache/cookie");
+
+	/**
+	 * Schema for global configuration (i.e. which applies to all projects for a given user).
+	 */
+	public static Configuration.Schema SCHEMA = Configuration.fromArray(
+			Configuration.UNBOUND_STRING(CACHE_URL, "remote build cache url", false),
+			Configuration.UNBOUND_STRING(CACHE_COOKIE, "remote build cache cookie (for authentication)", false));
+
+	/**
+	 * Maximum number of concurrent connections to the cache.
+	 */
+	private static final int MAX_CONNECTIONS = 16;
+	/**
+	 * Timeout (in milliseconds) for establishing a connection, waiting for data
+	 * and obtaining a pooled connection. Without these, an unresponsive cache
+	 * would stall the build indefinitely, rather than just making it slower.
+	 */
+	private static final int TIMEOUT = 10000;
+	/**
+	 * Configuration for all requests made to the cache.
+	 */
+	private static final RequestConfig REQUEST_CONFIG = RequestConfig.custom().setConnectTimeout(TIMEOUT)
+			.setSocketTimeout(TIMEOUT).setConnectionRequestTimeout(TIMEOUT).build();
+
+	private final String url;
+	private final String cookie;
+	private final CloseableHttpClient httpclient = HttpClients.custom().setDefaultRequestConfig(REQUEST_CONFIG)
+			.setMaxConnPerRoute(MAX_CONNECTIONS).setMaxConnTotal(MAX_CONNECTIONS).build();
+
+	public HttpBuildCache(String url, String cookie) {
+		this.url = url.endsWith("/") ? url : url + "/";
+		this.cookie = cookie;
+	}
+
+	@Override
+	public byte[] get(String key) throws IOException {
+		HttpGet httpget = configure(new HttpGet(url + key));
+		try (CloseableHttpResponse response = httpclient.execute(httpget)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_OK) {
+				return EntityUtils.toByteArray(response.getEntity());
+			} else {
+				EntityUtils.consume(response.getEntity());
+				if (status == HttpStatus.SC_NOT_FOUND) {
+					return null;
+				}
+				throw new IOException("failed reading " + url + key + " (" + response.getStatusLine() + ")");
+			}
+		}
+	}
+
+	@Override
+	public void put(String key, byte[] contents) throws IOException {
+		HttpPut httpput = configure(new HttpPut(url + key));
+		httpput.setEntity(new ByteArrayEntity(contents, ContentType.APPLICATION_OCTET_STREAM));
+		try (CloseableHttpResponse response = httpclient.execute(httpput)) {
+			int status = response.getStatusLine().getStatusCode();
+			EntityUtils.consume(response.getEntity());
+			if (status < 200 || status >= 300) {
+				throw new IOException("failed writing " + url + key + " (" + response.getStatusLine() + ")");
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		httpclient.close();
+	}
+
+	private <T extends HttpRequestBase> T configure(T request) {
+		if (cookie != null) {
+			request.addHeader("Cookie", cookie);
+		}
+		return request;
+	}
+}
@@ -13,7 +13,12 @@
 // limitations under the License.
 package wycli.util;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -29,7 +34,6 @@ import wyfs.lang.Path.Root;
 import wyfs.util.DirectoryRoot;
 import wyfs.util.Trie;
 import wyfs.util.ZipFile;
-import wyfs.util.ZipFileRoot;
 
 /**
  *
@@ -40,6 +44,17 @@ public class LocalPackageRepository implements Package.Repository {
 
 	public static final Trie REPOSITORY_DIR = Trie.fromString("repository/dir");
 
+	/**
+	 * Determines whether package archives are memory mapped. This is only safe
+	 * because archives in a repository are never modified in place: both
+	 * <code>put()</code> and <code>install</code> write a complete archive to a
+	 * temporary file and then atomically move it into place. Thus, a mapped
+	 * archive is never truncated underneath its mapping. However, on Windows, a
+	 * file which is mapped cannot be replaced at all. Hence, archives are read
+	 * through a file channel there instead.
+	 */
+	private static final boolean MAP_ARCHIVES = !System.getProperty("os.name", "").startsWith("Windows");
+
 	/**
 	 * Schema for global configuration (i.e. which applies to all projects for a given user).
 	 */
@@ -50,15 +65,22 @@ public class LocalPackageRepository implements Package.Repository {
 	protected final Package.Repository parent;
 	protected final Content.Registry registry;
 	protected final Path.Root root;
+	protected final PackageCache cache;
 
 	public LocalPackageRepository(Command.Environment environment, Content.Registry registry, Path.Root root) throws IOException {
 		this(environment,null,registry,root);
 	}
 
 	public LocalPackageRepository(Command.Environment environment, Package.Repository parent, Content.Registry registry, Path.Root root) throws IOException {
+		this(environment, parent, registry, root, new PackageCache(PackageCache.DEFAULT_CAPACITY));
+	}
+
+	public LocalPackageRepository(Command.Environment environment, Package.Repository parent,
+			Content.Registry registry, Path.Root root, PackageCache cache) throws IOException {
 		this.parent = parent;
 		this.registry = registry;
 		this.environment = environment;
+		this.cache = cache;
 		// Check whether URL configuration given
 		if(environment.hasKey(REPOSITORY_DIR)) {
 			// Yes, therefore override default location
@@ -100,8 +122,13 @@ public class LocalPackageRepository implements Package.Repository {
 		} else {
 			// Extract entry for ZipFile
 			Path.Entry<ZipFile> zipfile = root.get(id, ZipFile.ContentType);
-			// Construct root representing this ZipFile
-			return new ZipFileRoot(zipfile, registry);
+			// NOTE: the repository root is a directory, so each entry is a file
+			File file = new File(zipfile.location());
+			if (!file.isFile()) {
+				throw new IOException("package archive " + file + " is not a file");
+			}
+			// Construct (or reuse) root representing this ZipFile
+			return cache.open(file, registry, MAP_ARCHIVES);
 		}
 	}
 
@@ -111,12 +138,47 @@ public class LocalPackageRepository implements Package.Repository {
 		Trie qpn = Trie.fromString(name + "-v" + version);
 		// Dig out the file!
 		Path.Entry<ZipFile> entry = root.create(qpn, ZipFile.ContentType);
-		// Write the contents
-		entry.write(pkg);
-		// Flush
-		entry.flush();
+		File file = new File(entry.location());
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		// Write the contents in full before moving into place (see MAP_ARCHIVES)
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				ZipFile.ContentType.write(out, pkg);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+		// Ensure root reflects archive written underneath it
+		root.refresh();
 		//
 		environment.getLogger().logTimedMessage("Installed " + entry.location(), 0, 0);
 	}
 
+	@Override
+	public Path.Entry<ZipFile> getArchive(String name, SemanticVersion version) throws IOException {
+		return root.get(Trie.fromString(name + "-v" + version), ZipFile.ContentType);
+	}
+
+	@Override
+	public Path.Entry<ZipFile> createArchive(String name, SemanticVersion version) throws IOException {
+		Trie qpn = Trie.fromString(name + "-v" + version);
+		// Reuse existing entry (if applicable)
+		Path.Entry<ZipFile> entry = root.get(qpn, ZipFile.ContentType);
+		//
+		return entry != null ? entry : root.create(qpn, ZipFile.ContentType);
+	}
+
+	@Override
+	public void deploy(Path.Entry<ZipFile> archive, String name, SemanticVersion version) throws IOException {
+		if (parent != null) {
+			parent.deploy(archive, name, version);
+		} else {
+			throw new IOException("no remote repository to deploy " + name + "-v" + version + " to");
+		}
+	}
+
 }
@@ -0,0 +1,282 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.AbstractEntry;
+import wyfs.util.AbstractFolder;
+import wyfs.util.AbstractRoot;
+import wyfs.util.Trie;
+
+/**
+ * A read-only root over a zip archive (e.g. a dependency package). Only the
+ * central directory is parsed when the root is opened, and entries are
+ * decompressed on demand when read. A small cache of recently decompressed
+ * entries is retained, since the same entry is often read more than once
+ * during a build. Thus, memory use is determined by the entries actually used,
+ * rather than the size of the archive.
+ * <p>
+ * The archive may optionally be memory mapped, in which case the mapping
+ * remains for as long as the root is reachable. This is only safe for archives
+ * which are replaced atomically (i.e. by moving a new file into place), since
+ * truncating a mapped file causes subsequent accesses to the mapping to fail
+ * abruptly (e.g. with <code>SIGBUS</code>). Furthermore, on some platforms
+ * (e.g. Windows) a mapped file cannot be replaced at all. Otherwise, the
+ * archive is read through a file channel, where truncation is reported as an
+ * ordinary <code>IOException</code>. In the latter case, the file channel
+ * remains open until the root is closed.
+ */
+public class MappedZipRoot extends AbstractRoot<MappedZipRoot.Folder> implements Closeable {
+	/**
+	 * Maximum total size (in bytes) of decompressed entries retained.
+	 */
+	private static final int CACHE_LIMIT = 4 * 1024 * 1024;
+
+	/**
+	 * Entries larger than this are never retained.
+	 */
+	private static final int CACHE_ENTRY_LIMIT = CACHE_LIMIT / 4;
+
+	private final File file;
+	private final long lastModified;
+	private final ZipArchiveReader archive;
+
+	/**
+	 * Recently decompressed entries, in access order.
+	 */
+	private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private long cacheSize;
+
+	public MappedZipRoot(File file, Content.Registry registry, boolean map) throws IOException {
+		super(registry);
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.archive = new ZipArchiveReader(file, map);
+	}
+
+	@Override
+	protected Folder root() {
+		return new Folder(Trie.ROOT);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Nothing to do, since archive is read-only
+	}
+
+	@Override
+	public void refresh() throws IOException {
+		// Nothing to do, since archive is read-only
+	}
+
+	/**
+	 * Close the archive underlying this root. After this, entries can no longer be
+	 * read (other than those already retained).
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		archive.close();
+	}
+
+	/**
+	 * Get the archive underlying this root.
+	 *
+	 * @return
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the modification time of the archive when this root was opened.
+	 *
+	 * @return
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Get a digest identifying the contents of this archive. For a package written
+	 * by <code>install</code>, this is the digest recorded in the archive comment.
+	 * Otherwise, it is determined from the size and modification time of the
+	 * archive.
+	 *
+	 * @return
+	 */
+	public String getDigest() {
+		String comment = archive.getComment();
+		if (comment != null && !comment.isEmpty()) {
+			return comment;
+		}
+		return "file:" + file.length() + ":" + lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return file.getPath();
+	}
+
+	/**
+	 * Read the contents of a given entry, either from the cache or by
+	 * decompressing it.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private InputStream read(ZipArchiveReader.Entry entry) throws IOException {
+		byte[] bytes;
+		synchronized (cache) {
+			bytes = cache.get(entry.getName());
+		}
+		if (bytes != null) {
+			return new ByteArrayInputStream(bytes);
+		} else if (entry.getSize() > CACHE_ENTRY_LIMIT) {
+			// Too large to retain, so stream directly
+			return archive.openStream(entry);
+		}
+		bytes = new byte[(int) entry.getSize()];
+		try (InputStream in = archive.openStream(entry)) {
+			int total = 0;
+			int n;
+			while (total < bytes.length && (n = in.read(bytes, total, bytes.length - total)) != -1) {
+				total += n;
+			}
+			// NOTE: reading the end of the stream checks the CRC
+			if (total != bytes.length || in.read() != -1) {
+				throw new IOException("corrupt zip entry " + entry.getName() + " in " + file);
+			}
+		}
+		synchronized (cache) {
+			if (cache.put(entry.getName(), bytes) == null) {
+				cacheSize += bytes.length;
+			}
+			Iterator<byte[]> iterator = cache.values().iterator();
+			while (cacheSize > CACHE_LIMIT && iterator.hasNext()) {
+				cacheSize -= iterator.next().length;
+				iterator.remove();
+			}
+		}
+		return new ByteArrayInputStream(bytes);
+	}
+
+	/**
+	 * A folder within the archive. Its contents are determined from the central
+	 * directory when first accessed.
+	 */
+	public final class Folder extends AbstractFolder {
+		public Folder(Path.ID id) {
+			super(id);
+		}
+
+		@Override
+		protected Path.Item[] contents() throws IOException {
+			String prefix = id.size() == 0 ? "" : id.toString() + "/";
+			ArrayList<Path.Item> items = new ArrayList<>();
+			HashSet<String> folders = new HashSet<>();
+			for (ZipArchiveReader.Entry ze : archive.getEntries()) {
+				String name = ze.getName();
+				if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+					continue;
+				}
+				String remainder = name.substring(prefix.length());
+				int slash = remainder.indexOf('/');
+				if (slash >= 0) {
+					// Entry is within a subfolder
+					String folder = remainder.substring(0, slash);
+					if (folders.add(folder)) {
+						items.add(new Folder(id.append(folder)));
+					}
+				} else {
+					int dot = remainder.lastIndexOf('.');
+					String filename = dot < 0 ? remainder : remainder.substring(0, dot);
+					String suffix = dot < 0 ? "" : remainder.substring(dot + 1);
+					Entry<?> e = new Entry<>(id.append(filename), suffix, ze);
+					contentTypes.associate(e);
+					items.add(e);
+				}
+			}
+			return items.toArray(new Path.Item[items.size()]);
+		}
+	}
+
+	/**
+	 * An entry within the archive, which is decompressed when read.
+	 */
+	private final class Entry<T> extends AbstractEntry<T> implements Path.Entry<T> {
+		private final String suffix;
+		private final ZipArchiveReader.Entry entry;
+
+		public Entry(Path.ID id, String suffix, ZipArchiveReader.Entry entry) {
+			super(id);
+			this.suffix = suffix;
+			this.entry = entry;
+		}
+
+		@Override
+		public String location() {
+			return file.getPath();
+		}
+
+		@Override
+		public long lastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public boolean isModified() {
+			return false;
+		}
+
+		@Override
+		public void touch() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String suffix() {
+			return suffix;
+		}
+
+		@Override
+		public InputStream inputStream() throws IOException {
+			return read(entry);
+		}
+
+		@Override
+		public OutputStream outputStream() throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return file + "!" + entry.getName();
+		}
+	}
+}
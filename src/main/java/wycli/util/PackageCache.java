@@ -0,0 +1,297 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import wycli.cfg.ConfigFile;
+import wycli.cfg.Configuration;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * A workspace-wide cache of opened package roots and their parsed
+ * configurations. This allows projects which depend on the same package to
+ * share a single root (and, hence, a single index of the underlying archive)
+ * and a single parse of its <code>wy.toml</code> for each schema. Each package
+ * is reference counted by the projects using it. A package can also be pinned
+ * while it is being resolved for a project (i.e. before the project acquires a
+ * reference to it), so it cannot be evicted in between. Packages which are
+ * neither pinned nor referenced remain cached until the cache exceeds its
+ * capacity, at which point the least recently used are evicted and their
+ * archives closed.
+ */
+public class PackageCache {
+	/**
+	 * Default maximum number of packages retained.
+	 */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final Trie CONFIG_ID = Trie.fromString("wy");
+
+	private final int capacity;
+
+	/**
+	 * Cached packages keyed on the location of their archive, in access order.
+	 */
+	private final LinkedHashMap<String, Item> items = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Maps each cached root to its item.
+	 */
+	private final IdentityHashMap<Path.Root, Item> roots = new IdentityHashMap<>();
+
+	public PackageCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Open the root for a given package archive, reusing a previously opened root
+	 * if the archive has not been modified since. Only the central directory of
+	 * the archive is read, such that only those entries actually used are
+	 * decompressed. This neither acquires a reference to nor pins the package, so
+	 * it may be evicted at any time until one of these is done (see
+	 * <code>pin()</code>).
+	 *
+	 * @param file
+	 *            The archive itself.
+	 * @param registry
+	 * @param map
+	 *            Whether to memory map the archive. This should only be used for
+	 *            archives which are replaced atomically, rather than modified in
+	 *            place (see <code>MappedZipRoot</code>).
+	 * @return
+	 * @throws IOException
+	 */
+	public Path.Root open(File file, Content.Registry registry, boolean map) throws IOException {
+		String key = file.getPath();
+		long lastModified = file.lastModified();
+		synchronized (this) {
+			Item item = items.get(key);
+			if (item != null && item.lastModified == lastModified) {
+				return item.root;
+			}
+		}
+		// Index the archive without holding the lock
+		Item item = new Item(key, lastModified, new MappedZipRoot(file, registry, map));
+		synchronized (this) {
+			Item existing = items.get(key);
+			if (existing != null && existing.lastModified == item.lastModified) {
+				// Another thread opened it first
+				close(item);
+				return existing.root;
+			} else if (existing != null && existing.references == 0 && existing.pins == 0) {
+				remove(existing);
+			}
+			items.put(key, item);
+			roots.put(item.root, item);
+			// NOTE: the root being returned must not be evicted (and closed) here
+			evict(item);
+			return item.root;
+		}
+	}
+
+	/**
+	 * Pin the package with a given root, such that it cannot be evicted until it
+	 * is unpinned. This fails if the package has already been evicted, in which
+	 * case it should be opened again. Roots which are not archives are never
+	 * evicted, so can always be pinned.
+	 *
+	 * @param root
+	 * @return True if the package was pinned.
+	 */
+	public synchronized boolean pin(Path.Root root) {
+		Item item = roots.get(root);
+		if (item != null) {
+			item.pins++;
+			return true;
+		}
+		return getKey(root) == null;
+	}
+
+	/**
+	 * Unpin the package with a given root, previously pinned with
+	 * <code>pin()</code>.
+	 *
+	 * @param root
+	 */
+	public synchronized void unpin(Path.Root root) {
+		Item item = roots.get(root);
+		if (item != null && item.pins > 0) {
+			item.pins--;
+			if (item.references == 0 && item.pins == 0 && items.get(item.key) != item) {
+				// Superseded by a newer version of the archive
+				roots.remove(root);
+				close(item);
+			}
+			evict(null);
+		}
+	}
+
+	/**
+	 * Acquire a reference to the package with a given root, returning its
+	 * configuration parsed with a given schema. The configuration is parsed at
+	 * most once for each schema (unless two threads parse it concurrently).
+	 * Roots which were not opened through this cache are tracked until their last
+	 * reference is released. Archive roots opened through this cache must be
+	 * pinned (or already referenced), since otherwise they may have been evicted
+	 * and closed.
+	 *
+	 * @param root
+	 * @param schema
+	 * @return
+	 * @throws IOException
+	 */
+	public Configuration acquire(Path.Root root, Configuration.Schema schema) throws IOException {
+		Item item;
+		synchronized (this) {
+			item = roots.get(root);
+			if (item == null && getKey(root) != null) {
+				throw new IOException("package " + root + " no longer cached");
+			} else if (item == null) {
+				item = new Item(null, -1, root);
+				roots.put(root, item);
+			} else if (item.key != null) {
+				// Mark as recently used
+				items.get(item.key);
+			}
+			item.references++;
+			Configuration configuration = item.configurations.get(schema);
+			if (configuration != null) {
+				return configuration;
+			}
+		}
+		// Parse configuration without holding the lock
+		Path.Entry<ConfigFile> entry = root.get(CONFIG_ID, ConfigFile.ContentType);
+		if (entry == null) {
+			release(root);
+			throw new IOException("package " + root + " missing wy.toml");
+		}
+		Configuration configuration = entry.read().toConfiguration(schema, false);
+		synchronized (this) {
+			Configuration existing = item.configurations.putIfAbsent(schema, configuration);
+			return existing != null ? existing : configuration;
+		}
+	}
+
+	/**
+	 * Release a reference to the package with a given root, previously acquired
+	 * with <code>acquire()</code>.
+	 *
+	 * @param root
+	 */
+	public synchronized void release(Path.Root root) {
+		Item item = roots.get(root);
+		if (item != null && item.references > 0) {
+			item.references--;
+			if (item.references == 0 && item.pins == 0 && items.get(item.key) != item) {
+				// Superseded by a newer version of the archive, or not an archive
+				roots.remove(root);
+				close(item);
+			}
+			evict(null);
+		}
+	}
+
+	/**
+	 * Close and remove all packages which are neither pinned nor referenced (e.g.
+	 * once all projects have been closed). Packages still in use remain cached.
+	 */
+	public synchronized void clear() {
+		Iterator<Item> iterator = items.values().iterator();
+		while (iterator.hasNext()) {
+			Item item = iterator.next();
+			if (item.references == 0 && item.pins == 0) {
+				iterator.remove();
+				roots.remove(item.root);
+				close(item);
+			}
+		}
+	}
+
+	/**
+	 * Evict (and close) the least recently used packages which are neither pinned
+	 * nor referenced until the cache is within its capacity.
+	 *
+	 * @param keep
+	 *            A package which must not be evicted (or <code>null</code>).
+	 */
+	private void evict(Item keep) {
+		Iterator<Item> iterator = items.values().iterator();
+		while (items.size() > capacity && iterator.hasNext()) {
+			Item item = iterator.next();
+			if (item != keep && item.references == 0 && item.pins == 0) {
+				iterator.remove();
+				roots.remove(item.root);
+				close(item);
+			}
+		}
+	}
+
+	/**
+	 * Determine the key under which a given root is cached, or <code>null</code>
+	 * if it is not an archive (and so is not cached).
+	 *
+	 * @param root
+	 * @return
+	 */
+	private static String getKey(Path.Root root) {
+		return root instanceof MappedZipRoot ? ((MappedZipRoot) root).getFile().getPath() : null;
+	}
+
+	private void remove(Item item) {
+		items.remove(item.key);
+		roots.remove(item.root);
+		close(item);
+	}
+
+	/**
+	 * Close the archive of a package which is no longer cached. Failures are
+	 * ignored, since nothing further is read from it.
+	 *
+	 * @param item
+	 */
+	private static void close(Item item) {
+		if (item.root instanceof MappedZipRoot) {
+			try {
+				((MappedZipRoot) item.root).close();
+			} catch (IOException e) {
+				// Nothing further to do
+			}
+		}
+	}
+
+	private static class Item {
+		private final String key;
+		private final long lastModified;
+		private final Path.Root root;
+		/**
+		 * Configurations of this package, parsed with each schema.
+		 */
+		private final IdentityHashMap<Configuration.Schema, Configuration> configurations = new IdentityHashMap<>();
+		private int references;
+		private int pins;
+
+		public Item(String key, long lastModified, Path.Root root) {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.root = root;
+		}
+	}
+}
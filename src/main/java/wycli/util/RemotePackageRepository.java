@@ -2,27 +2,42 @@ package wycli.util;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
 import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.Logger;
 import wycli.cfg.Configuration;
 import wycli.lang.Command;
 import wycli.lang.Package;
@@ -33,12 +48,13 @@ import wyfs.lang.Path;
 import wyfs.util.Trie;
 import wyfs.util.ZipFile;
 
-public class RemotePackageRepository extends LocalPackageRepository {
+public class RemotePackageRepository extends LocalPackageRepository implements Closeable {
 
 	public static final Trie REPOSITORY_URL = Trie.fromString("repository/url");
 	public static final Trie REPOSITORY_ROUTE = Trie.fromString("repository/route");
 	public static final Trie REPOSITORY_COOKIE = Trie.fromString("repository/cookie");
 	public static final Trie REPOSITORY_PROXY = Trie.fromString("repository/proxy");
+	public static final Trie REPOSITORY_MIRRORS = Trie.fromString("repository/mirrors");
 
 	/**
 	 * Schema for global configuration (i.e. which applies to all projects for a given user).
@@ -47,7 +63,37 @@ public class RemotePackageRepository extends LocalPackageRepository {
 			Configuration.UNBOUND_STRING(REPOSITORY_URL, "remote url", false),
 			Configuration.UNBOUND_STRING(REPOSITORY_ROUTE, "remote route (template)", false),
 			Configuration.UNBOUND_STRING(REPOSITORY_COOKIE, "remote cookie (for authentication)", false),
-			Configuration.UNBOUND_STRING(REPOSITORY_PROXY, "proxy URL", false));
+			Configuration.UNBOUND_STRING(REPOSITORY_PROXY, "proxy URL", false),
+			Configuration.UNBOUND_STRING_ARRAY(REPOSITORY_MIRRORS, "additional remote urls (for deployment)", false));
+
+	/**
+	 * Size of each chunk when uploading a package.
+	 */
+	private static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * Number of times an individual chunk upload is attempted before giving up.
+	 */
+	private static final int UPLOAD_ATTEMPTS = 3;
+	/**
+	 * Status code used (following the resumable upload convention) to indicate
+	 * that only part of a package has been received so far.
+	 */
+	private static final int SC_RESUME_INCOMPLETE = 308;
+	/**
+	 * Header used to communicate the SHA-256 checksum of a package.
+	 */
+	private static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
+	/**
+	 * Maximum number of concurrent connections to any one remote location (e.g.
+	 * when fetching many packages in parallel).
+	 */
+	private static final int MAX_CONNECTIONS = 16;
+	/**
+	 * Configuration for upload requests. Redirects must not be followed, since
+	 * the status code used for an incomplete upload coincides with that for a
+	 * permanent redirect.
+	 */
+	private static final RequestConfig UPLOAD_CONFIG = RequestConfig.custom().setRedirectsEnabled(false).build();
 
 	/**
 	 * The route defines a template from which to construct the complete url to the
@@ -72,17 +118,36 @@ public class RemotePackageRepository extends LocalPackageRepository {
 	 * The proxy (if given) will be configured.
 	 */
 	private String proxy = null;
+	/**
+	 * Additional URIs to which packages are deployed (alongside the main URI).
+	 */
+	private String[] mirrors = new String[0];
 	/**
 	 * Master index of all known semantic versions
 	 */
 	private Map<String,Set<SemanticVersion>> index = null;
+	/**
+	 * Indicates whether remote locations should not be accessed at all. In which
+	 * case, only packages already in the local repository are available.
+	 */
+	private volatile boolean offline = false;
+	/**
+	 * Client shared by all requests, such that connections are pooled. This is
+	 * created on first use.
+	 */
+	private CloseableHttpClient client = null;
 
 	public RemotePackageRepository(Command.Environment environment,Content.Registry registry, Path.Root root) throws IOException {
 		this(environment,null,registry,root);
 	}
 
 	public RemotePackageRepository(Command.Environment environment, Package.Repository parent, Content.Registry registry, Path.Root root) throws IOException {
-		super(environment,parent,registry,root);
+		this(environment, parent, registry, root, new PackageCache(PackageCache.DEFAULT_CAPACITY));
+	}
+
+	public RemotePackageRepository(Command.Environment environment, Package.Repository parent,
+			Content.Registry registry, Path.Root root, PackageCache cache) throws IOException {
+		super(environment,parent,registry,root,cache);
 		// Check whether URL configuration given
 		if(environment.hasKey(REPOSITORY_URL)) {
 			this.uri = environment.get(Value.UTF8.class, REPOSITORY_URL).toString();
@@ -99,11 +164,41 @@ public class RemotePackageRepository extends LocalPackageRepository {
 		if(environment.hasKey(REPOSITORY_PROXY)) {
 			this.proxy = environment.get(Value.UTF8.class, REPOSITORY_PROXY).toString();
 		}
+		// Check whether mirrors configuration given
+		if(environment.hasKey(REPOSITORY_MIRRORS)) {
+			Value.UTF8[] urls = environment.get(Value.Array.class, REPOSITORY_MIRRORS).toArray(Value.UTF8.class);
+			this.mirrors = new String[urls.length];
+			for (int i = 0; i != urls.length; ++i) {
+				this.mirrors[i] = urls[i].toString();
+			}
+		}
+	}
+
+	/**
+	 * Set whether this repository is offline. If so, no remote location is
+	 * accessed and only packages in the local repository are available.
+	 *
+	 * @param offline
+	 */
+	public void setOffline(boolean offline) {
+		this.offline = offline;
+	}
+
+	/**
+	 * Check whether this repository is offline.
+	 *
+	 * @return
+	 */
+	public boolean isOffline() {
+		return offline;
 	}
 
 	@Override
 	public Set<SemanticVersion> list(String pkg) throws IOException {
 		Set<SemanticVersion> results = super.list(pkg);
+		if (offline) {
+			return results;
+		}
 		// Make sure index is upto date
 		loadIndex();
 		// Add any known versions from remote index
@@ -119,7 +214,10 @@ public class RemotePackageRepository extends LocalPackageRepository {
 		// Check for local version of this package
 		Path.Root pkg = super.get(name, version);
 		// Did we find it?
-		if (pkg == null) {
+		if (pkg == null && offline) {
+			// NOTE: reported as an error, since the logger is often silent
+			throw new IOException("package " + name + "-v" + version + " not in local repository (offline)");
+		} else if (pkg == null) {
 			// Nope, so get from remote
 			ZipFile zf = getRemote(name, version);
 			//
@@ -135,9 +233,205 @@ public class RemotePackageRepository extends LocalPackageRepository {
 	}
 
 	@Override
-	public void put(ZipFile pkg, String name, SemanticVersion version) throws IOException {
-		// FIXME: this is really a temporary hack.
-		super.put(pkg, name, version);
+	public void deploy(Path.Entry<ZipFile> archive, String name, SemanticVersion version) throws IOException {
+		if (offline) {
+			throw new IOException("cannot deploy " + name + "-v" + version + " whilst offline");
+		}
+		File file = new File(archive.location());
+		String checksum = Hashing.toHexString(Hashing.sha256(archive.inputStream()));
+		String route = pkgRoute.replace("${NAME}", name).replace("${VERSION}", version.toString());
+		ExecutorService executor = environment.getExecutor();
+		CloseableHttpClient httpclient = getClient();
+		// Upload to all remote locations concurrently
+		ArrayList<Future<?>> uploads = new ArrayList<>();
+		Logger logger = environment.getLogger();
+		uploads.add(executor.submit(() -> upload(httpclient, uri + route, file, checksum, cookie, logger)));
+		for (String mirror : mirrors) {
+			uploads.add(executor.submit(() -> upload(httpclient, mirror + route, file, checksum, cookie, logger)));
+		}
+		// Wait for all uploads to finish, reporting any failures
+		int failures = 0;
+		for (Future<?> f : uploads) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("deployment interrupted", e);
+			} catch (ExecutionException e) {
+				environment.getLogger().logTimedMessage(e.getCause().getMessage(), 0, 0);
+				failures++;
+			}
+		}
+		if (failures > 0) {
+			throw new IOException("failed deploying " + name + "-v" + version + " to " + failures + " location(s)");
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+	}
+
+	/**
+	 * Upload a package to a given URL. The package is sent in chunks, each of
+	 * which identifies its position using a <code>Content-Range</code> header. If
+	 * a previous upload was interrupted, the server reports (via a
+	 * <code>Range</code> header) how much was received and the upload resumes from
+	 * there. Likewise, a package which is already present (with a matching
+	 * checksum) is not uploaded again. Transient failures (e.g. a connection
+	 * reset) when uploading a chunk, or when querying the server afterwards, are
+	 * retried a bounded number of times.
+	 *
+	 * @param httpclient
+	 * @param url
+	 * @param file
+	 * @param checksum
+	 * @param cookie
+	 *            Cookie to add to each request (or <code>null</code> if none).
+	 * @param logger
+	 * @return
+	 * @throws IOException
+	 */
+	static Void upload(CloseableHttpClient httpclient, String url, File file, String checksum, String cookie,
+			Logger logger) throws IOException {
+		long start = System.currentTimeMillis();
+		long length = file.length();
+		// Determine how much (if any) has already been uploaded
+		long offset = queryUpload(httpclient, url, checksum, cookie);
+		if (offset == length) {
+			logger.logTimedMessage("Package already deployed to " + url, 0, 0);
+			return null;
+		} else if (offset > 0) {
+			logger.logTimedMessage("Resuming upload to " + url + " from byte " + offset, 0, 0);
+		}
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			byte[] chunk = new byte[(int) Math.min(UPLOAD_CHUNK_SIZE, Math.max(length, 1))];
+			int attempts = 0;
+			// Furthest offset the server has acknowledged
+			long highest = offset;
+			while (offset < length) {
+				int n = (int) Math.min(chunk.length, length - offset);
+				in.seek(offset);
+				in.readFully(chunk, 0, n);
+				HttpPut httpput = new HttpPut(url);
+				httpput.setConfig(UPLOAD_CONFIG);
+				httpput.addHeader("Content-Range", "bytes " + offset + "-" + (offset + n - 1) + "/" + length);
+				httpput.addHeader(CHECKSUM_HEADER, checksum);
+				if (cookie != null) {
+					httpput.addHeader("Cookie", cookie);
+				}
+				httpput.setEntity(new ByteArrayEntity(chunk, 0, n, ContentType.APPLICATION_OCTET_STREAM));
+				int status;
+				try (CloseableHttpResponse response = httpclient.execute(httpput)) {
+					status = response.getStatusLine().getStatusCode();
+					EntityUtils.consume(response.getEntity());
+					if (status == SC_RESUME_INCOMPLETE) {
+						// Server may have accepted less than was sent
+						offset = parseRangeEnd(response.getFirstHeader("Range"), offset + n);
+					} else if (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED) {
+						offset += n;
+					}
+				} catch (UnknownHostException e) {
+					throw new IOException("failed uploading " + url + " (unknown host)", e);
+				} catch (IOException e) {
+					// Transient failure (e.g. connection reset)
+					status = -1;
+				}
+				boolean accepted = status == SC_RESUME_INCOMPLETE || status == HttpStatus.SC_OK
+						|| status == HttpStatus.SC_CREATED;
+				if (accepted && offset > highest) {
+					// Only reset attempts on actual progress, since a server which repeatedly
+					// acknowledges without advancing would otherwise be retried forever
+					highest = offset;
+					attempts = 0;
+					continue;
+				} else if (status >= 400 && status < 500) {
+					// Client errors will not succeed on retry
+					throw new IOException("failed uploading " + url + " (status " + status + ")");
+				} else if (++attempts >= UPLOAD_ATTEMPTS) {
+					throw new IOException("failed uploading " + url + " (too many attempts)");
+				}
+				// Retry from wherever the server says it got to
+				try {
+					offset = queryUpload(httpclient, url, checksum, cookie);
+				} catch (UnknownHostException e) {
+					throw new IOException("failed uploading " + url + " (unknown host)", e);
+				} catch (IOException e) {
+					// Transient failure, so retry from the current offset
+				}
+			}
+		}
+		// Finally, check what the server received matches what was sent
+		if (queryUpload(httpclient, url, checksum, cookie) != length) {
+			throw new IOException("failed uploading " + url + " (checksum mismatch)");
+		}
+		long time = System.currentTimeMillis() - start;
+		logger.logTimedMessage("Deployed " + url, time, 0);
+		return null;
+	}
+
+	/**
+	 * Query the state of an upload to a given URL. This returns the length of the
+	 * package if it has been completely uploaded with a matching checksum, the
+	 * number of bytes received so far if an upload is in progress, or zero
+	 * otherwise.
+	 *
+	 * @param httpclient
+	 * @param url
+	 * @param checksum
+	 * @param cookie
+	 * @return
+	 * @throws IOException
+	 */
+	private static long queryUpload(CloseableHttpClient httpclient, String url, String checksum, String cookie)
+			throws IOException {
+		HttpHead httphead = new HttpHead(url);
+		httphead.setConfig(UPLOAD_CONFIG);
+		if (cookie != null) {
+			httphead.addHeader("Cookie", cookie);
+		}
+		try (CloseableHttpResponse response = httpclient.execute(httphead)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_OK) {
+				Header remote = response.getFirstHeader(CHECKSUM_HEADER);
+				Header length = response.getFirstHeader("Content-Length");
+				if (remote != null && length != null && checksum.equalsIgnoreCase(remote.getValue())) {
+					return Long.parseLong(length.getValue());
+				}
+			} else if (status == SC_RESUME_INCOMPLETE) {
+				return parseRangeEnd(response.getFirstHeader("Range"), 0);
+			}
+			return 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Parse the end of a range header of the form <code>bytes=0-N</code>,
+	 * returning the offset of the next byte required (i.e. <code>N+1</code>).
+	 *
+	 * @param header
+	 * @param defaulT
+	 *            Value to return if the header is missing or malformed.
+	 * @return
+	 */
+	private static long parseRangeEnd(Header header, long defaulT) {
+		if (header != null) {
+			String value = header.getValue();
+			int dash = value.lastIndexOf('-');
+			if (dash >= 0) {
+				try {
+					return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+				} catch (NumberFormatException e) {
+					// fall through
+				}
+			}
+		}
+		return defaulT;
 	}
 
 	/**
@@ -154,7 +448,6 @@ public class RemotePackageRepository extends LocalPackageRepository {
 		String url = uri + pkgRoute.replace("${NAME}", name).replace("${VERSION}", version.toString());
 		//
 		CloseableHttpClient httpclient = getClient();
-		// NOTE: connection pooling might be a better idea for performance reasons.
 		HttpGet httpget = new HttpGet(url);
 		// Configure get request (if necessary)
 		if(cookie != null) {
@@ -180,13 +473,12 @@ public class RemotePackageRepository extends LocalPackageRepository {
 	 * @throws IOException
 	 * @throws ClientProtocolException
 	 */
-	private void loadIndex() throws IOException {
+	private synchronized void loadIndex() throws IOException {
 		if (index == null) {
 			String url = uri + indexRoute;
 			try {
 				//
 				CloseableHttpClient httpclient = getClient();
-				// NOTE: connection pooling might be a better idea for performance reasons.
 				HttpGet httpget = new HttpGet(url);
 				// Configure get request (if necessary)
 				if (cookie != null) {
@@ -217,27 +509,32 @@ public class RemotePackageRepository extends LocalPackageRepository {
 	}
 
 	/**
-	 * Create an appropriate client which takes into considerable any relevant
-	 * configuration parameters.
+	 * Get the client used for all requests, creating it if necessary. This takes
+	 * into consideration any relevant configuration parameters, and pools
+	 * connections such that requests (e.g. when fetching packages in parallel) do
+	 * not each open a new connection.
 	 *
 	 * @return
 	 */
-	private CloseableHttpClient getClient() {
-		// Configure proxy host (if applicable)
-		if (this.proxy != null) {
-			HttpHost proxyhost;
-			String[] parts = proxy.split(":");
-			// Decide whether port number given
-			if (parts.length > 1) {
-				proxyhost = new HttpHost(parts[0], Integer.parseInt(parts[1]));
-			} else {
-				proxyhost = new HttpHost(proxy);
+	private synchronized CloseableHttpClient getClient() {
+		if (client == null) {
+			HttpClientBuilder builder = HttpClients.custom().setMaxConnPerRoute(MAX_CONNECTIONS)
+					.setMaxConnTotal(MAX_CONNECTIONS * (1 + mirrors.length));
+			// Configure proxy host (if applicable)
+			if (this.proxy != null) {
+				HttpHost proxyhost;
+				String[] parts = proxy.split(":");
+				// Decide whether port number given
+				if (parts.length > 1) {
+					proxyhost = new HttpHost(parts[0], Integer.parseInt(parts[1]));
+				} else {
+					proxyhost = new HttpHost(proxy);
+				}
+				builder.setProxy(proxyhost);
 			}
-			// Done
-			return HttpClients.custom().setProxy(proxyhost).build();
-		} else {
-			return HttpClients.createDefault();
+			client = builder.build();
 		}
+		return client;
 	}
 
 	private static Map<String, Set<SemanticVersion>> parseIndexFile(BufferedReader reader) throws IOException {
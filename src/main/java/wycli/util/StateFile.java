@@ -0,0 +1,265 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * Represents a simple file of key-value pairs used by commands to persist
+ * information between invocations (e.g. what was last installed or built).
+ * Unlike configuration files, these are written by the tool itself and are not
+ * intended to be edited by hand.
+ */
+public class StateFile {
+	// =========================================================================
+	// Content Type
+	// =========================================================================
+
+	public static final Content.Type<StateFile> ContentType = new Content.Type<StateFile>() {
+		public Path.Entry<StateFile> accept(Path.Entry<?> e) {
+			if (e.contentType() == this) {
+				return (Path.Entry<StateFile>) e;
+			}
+			return null;
+		}
+
+		@Override
+		public StateFile read(Path.Entry<StateFile> e, InputStream inputstream) throws IOException {
+			Properties properties = new Properties();
+			properties.load(inputstream);
+			StateFile state = new StateFile();
+			for (String key : properties.stringPropertyNames()) {
+				state.put(key, properties.getProperty(key));
+			}
+			return state;
+		}
+
+		@Override
+		public void write(OutputStream output, StateFile value) throws IOException {
+			// NOTE: Properties.store() is not used as it writes entries in an arbitrary
+			// order and includes a timestamp.
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.ISO_8859_1));
+			for (Map.Entry<String, String> e : value.entries.entrySet()) {
+				writer.write(escape(e.getKey(), true));
+				writer.write('=');
+				writer.write(escape(e.getValue(), false));
+				writer.newLine();
+			}
+			writer.flush();
+		}
+
+		@Override
+		public String toString() {
+			return "Content-Type: state";
+		}
+
+		@Override
+		public String getSuffix() {
+			return "state";
+		}
+	};
+
+	/**
+	 * The key-value pairs making up this file, maintained in sorted order so that
+	 * the file is written deterministically.
+	 */
+	private final TreeMap<String, String> entries = new TreeMap<>();
+
+	public String get(String key) {
+		return entries.get(key);
+	}
+
+	public void put(String key, String value) {
+		entries.put(key, value);
+	}
+
+	public void remove(String key) {
+		entries.remove(key);
+	}
+
+	public Set<String> keySet() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Remove all entries whose key starts with a given prefix.
+	 *
+	 * @param prefix
+	 */
+	public void clear(String prefix) {
+		entries.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+	}
+
+	/**
+	 * Get all entries whose key starts with a given prefix. The prefix is stripped
+	 * from the resulting keys.
+	 *
+	 * @param prefix
+	 * @return
+	 */
+	public Map<String, String> getAll(String prefix) {
+		TreeMap<String, String> result = new TreeMap<>();
+		for (Map.Entry<String, String> e : entries.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+			result.put(e.getKey().substring(prefix.length()), e.getValue());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof StateFile && entries.equals(((StateFile) o).entries);
+	}
+
+	@Override
+	public int hashCode() {
+		return entries.hashCode();
+	}
+
+	/**
+	 * Read the state file with a given identifier from a given root, returning an
+	 * empty state file if none exists (or it cannot be read).
+	 *
+	 * @param root
+	 * @param id
+	 * @return
+	 */
+	public static StateFile read(Path.Root root, Path.ID id) {
+		try {
+			Path.Entry<StateFile> entry = root.get(id, ContentType);
+			if (entry != null) {
+				return entry.read();
+			}
+		} catch (IOException e) {
+			// Treat unreadable state as missing
+		}
+		return new StateFile();
+	}
+
+	/**
+	 * Write this state file to a given root, creating it if necessary.
+	 *
+	 * @param root
+	 * @param id
+	 * @throws IOException
+	 */
+	public void write(Path.Root root, Path.ID id) throws IOException {
+		Path.Entry<StateFile> entry = root.get(id, ContentType);
+		if (entry == null) {
+			entry = root.create(id, ContentType);
+		}
+		entry.write(this);
+		entry.flush();
+	}
+
+	/**
+	 * Read the state file at a given location, returning an empty state file if
+	 * none exists (or it cannot be read).
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static StateFile read(File file) {
+		try (InputStream in = new FileInputStream(file)) {
+			return ContentType.read(null, in);
+		} catch (IOException e) {
+			// Treat unreadable state as missing
+			return new StateFile();
+		}
+	}
+
+	/**
+	 * Write this state file to a given location. The file is first written in full
+	 * to a temporary file alongside, which then replaces the original. Hence,
+	 * concurrent readers (e.g. other invocations of the tool) never see a
+	 * partially written file.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			try (OutputStream out = new FileOutputStream(tmp)) {
+				ContentType.write(out, this);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Escape a string according to the format of a Java properties file.
+	 *
+	 * @param str
+	 * @param key
+	 *            Whether or not this is a key (in which case spaces must also be
+	 *            escaped).
+	 * @return
+	 */
+	private static String escape(String str, boolean key) {
+		StringBuilder r = new StringBuilder(str.length());
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '\\':
+			case '=':
+			case ':':
+			case '#':
+			case '!':
+				r.append('\\').append(c);
+				break;
+			case ' ':
+				r.append(key || i == 0 ? "\\ " : " ");
+				break;
+			case '\n':
+				r.append("\\n");
+				break;
+			case '\r':
+				r.append("\\r");
+				break;
+			case '\t':
+				r.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c > 0x7e) {
+					r.append(String.format("\\u%04X", (int) c));
+				} else {
+					r.append(c);
+				}
+			}
+		}
+		return r.toString();
+	}
+}
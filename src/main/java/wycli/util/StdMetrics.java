@@ -0,0 +1,215 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import wycli.lang.Metrics;
+
+/**
+ * Provides a default implementation of a metrics registry. Counters are backed
+ * by <code>LongAdder</code>s and histograms by a fixed array of log-linear
+ * buckets (in the style of an HDR histogram) so that updating either does not
+ * allocate.
+ */
+public class StdMetrics implements Metrics {
+	/**
+	 * Registered counters.
+	 */
+	private final ConcurrentHashMap<String, StdCounter> counters = new ConcurrentHashMap<>();
+
+	/**
+	 * Registered gauges.
+	 */
+	private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+	/**
+	 * Registered histograms.
+	 */
+	private final ConcurrentHashMap<String, StdHistogram> histograms = new ConcurrentHashMap<>();
+
+	@Override
+	public Counter counter(String name) {
+		return counters.computeIfAbsent(name, k -> new StdCounter());
+	}
+
+	@Override
+	public void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	@Override
+	public Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new StdHistogram());
+	}
+
+	@Override
+	public void report(PrintStream output) {
+		ArrayList<String> names = new ArrayList<>(counters.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			output.println(name + " = " + counters.get(name).get());
+		}
+		names = new ArrayList<>(gauges.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			output.println(name + " = " + gauges.get(name).get());
+		}
+		names = new ArrayList<>(histograms.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			output.println(name + " : " + histograms.get(name));
+		}
+		output.flush();
+	}
+
+	private static final class StdCounter implements Counter {
+		private final LongAdder count = new LongAdder();
+
+		@Override
+		public void increment() {
+			count.increment();
+		}
+
+		@Override
+		public void add(long n) {
+			count.add(n);
+		}
+
+		@Override
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * A histogram made up from a fixed number of buckets. Values below
+	 * <code>2*SUB_BUCKETS</code> are recorded exactly. Above this, each power of
+	 * two is divided into <code>SUB_BUCKETS</code> linear buckets giving a relative
+	 * error of at most <code>1/SUB_BUCKETS</code>.
+	 */
+	private static final class StdHistogram implements Histogram {
+		private static final int SUB_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		// Largest shift occurs for Long.MAX_VALUE whose msb is at position 62.
+		private static final int NUM_BUCKETS = (62 - SUB_BITS + 2) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+		@Override
+		public void record(long value) {
+			value = Math.max(value, 0);
+			buckets.incrementAndGet(indexOf(value));
+			count.incrementAndGet();
+			sum.add(value);
+			// Update lower bound
+			long m = min.get();
+			while (value < m && !min.compareAndSet(m, value)) {
+				m = min.get();
+			}
+			// Update upper bound
+			m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+		}
+
+		@Override
+		public long count() {
+			return count.get();
+		}
+
+		@Override
+		public long min() {
+			return count.get() == 0 ? 0 : min.get();
+		}
+
+		@Override
+		public long max() {
+			return count.get() == 0 ? 0 : max.get();
+		}
+
+		@Override
+		public double mean() {
+			long n = count.get();
+			return n == 0 ? 0 : ((double) sum.sum()) / n;
+		}
+
+		@Override
+		public long percentile(double percentile) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long threshold = Math.max(1, (long) Math.ceil((percentile / 100.0) * n));
+			long seen = 0;
+			for (int i = 0; i != NUM_BUCKETS; ++i) {
+				seen += buckets.get(i);
+				if (seen >= threshold) {
+					// Clamp to observed range since buckets are approximate
+					return Math.min(Math.max(valueOf(i), min()), max());
+				}
+			}
+			return max();
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count() + " min=" + min() + " p50=" + percentile(50) + " p90=" + percentile(90)
+					+ " p99=" + percentile(99) + " max=" + max() + " mean=" + String.format("%.1f", mean());
+		}
+
+		/**
+		 * Determine the bucket into which a given (non-negative) value falls.
+		 *
+		 * @param value
+		 * @return
+		 */
+		private static int indexOf(long value) {
+			if (value < (2 * SUB_BUCKETS)) {
+				return (int) value;
+			} else {
+				int msb = 63 - Long.numberOfLeadingZeros(value);
+				int shift = msb - SUB_BITS;
+				return ((shift + 1) * SUB_BUCKETS) + ((int) (value >>> shift) - SUB_BUCKETS);
+			}
+		}
+
+		/**
+		 * Determine a representative value (i.e. the midpoint) for a given bucket.
+		 *
+		 * @param index
+		 * @return
+		 */
+		private static long valueOf(int index) {
+			if (index < (2 * SUB_BUCKETS)) {
+				return index;
+			} else {
+				int shift = (index / SUB_BUCKETS) - 1;
+				long lower = ((long) ((index % SUB_BUCKETS) + SUB_BUCKETS)) << shift;
+				return lower + ((1L << shift) >>> 1);
+			}
+		}
+	}
+}
@@ -16,6 +16,7 @@ package wycli.util;
 import java.util.HashMap;
 
 import wybs.util.Logger;
+import wycli.lang.Metrics;
 import wycli.lang.Module;
 
 public class StdModuleContext implements Module.Context {
@@ -25,6 +26,11 @@ public class StdModuleContext implements Module.Context {
 	 */
 	private Logger logger = Logger.NULL;
 
+	/**
+	 * Metrics registry made available to modules.
+	 */
+	private Metrics metrics = new StdMetrics();
+
 	/**
 	 * The extension points represent registered implementations of interfaces.
 	 * Each extension point represents a class that will be instantiated and
@@ -42,6 +48,15 @@ public class StdModuleContext implements Module.Context {
 		this.logger = logger;
 	}
 
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public <T> void register(Class<T> ep, T feature) {
 		Module.ExtensionPoint<T> container = (Module.ExtensionPoint<T>) extensionPoints.get(ep);
@@ -18,6 +18,14 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import wybs.lang.Build;
 import wybs.util.AbstractCompilationUnit.Value.UTF8;
@@ -38,71 +46,287 @@ import wyfs.util.Trie;
  *
  */
 public class StdPackageResolver implements Package.Resolver {
+	/**
+	 * Maximum number of dependencies resolved concurrently by
+	 * <code>resolveAll()</code>. Resolution is dominated by blocking I/O (e.g.
+	 * downloading packages), so this is independent of the number of processors.
+	 */
+	private static final int IO_THREADS = 8;
+
+	/**
+	 * Executor used for resolving dependencies concurrently. This is separate from
+	 * the environment's executor, since that is intended for computation (e.g. a
+	 * fork-join pool) and would be starved by blocking downloads. Threads are
+	 * created on demand and exit once idle.
+	 */
+	private static final ExecutorService IO_EXECUTOR = createExecutor();
+
 	private final Command.Environment environment;
 	private final Package.Repository repository;
+	/**
+	 * Cache holding the packages obtained from the repository. Each root returned
+	 * by <code>resolve()</code> or <code>resolveAll()</code> is pinned in this
+	 * cache until released by the caller.
+	 */
+	private final PackageCache cache;
+	/**
+	 * Memoises the resolution of each dependency (i.e. package name and version
+	 * requirement). This ensures that, when several projects are opened
+	 * concurrently, a package on which they all depend is resolved only once.
+	 */
+	private final ConcurrentHashMap<Pair<String, String>, FutureTask<Resolution>> resolutions = new ConcurrentHashMap<>();
 
-	public StdPackageResolver(Command.Environment environment, Package.Repository repository) {
+	public StdPackageResolver(Command.Environment environment, Package.Repository repository, PackageCache cache) {
 		this.repository = repository;
 		this.environment = environment;
+		this.cache = cache;
 	}
 
+	/**
+	 * Resolve the dependency closure of a given configuration. This fails if any
+	 * dependency cannot be found, rather than leaving the project to fail later
+	 * (and less clearly) when building against a missing package. The roots
+	 * returned remain pinned in the package cache until they are released.
+	 *
+	 * @param cf
+	 * @return
+	 * @throws IOException
+	 */
 	@Override
 	public List<Path.Root> resolve(Configuration cf) throws IOException {
 		ArrayList<Path.Root> packages = new ArrayList<>();
+		ArrayList<String> missing = new ArrayList<>();
 		// Extract all dependencies from target config file
 		List<Pair<String,String>> dependencies = extractDependencies(cf);
 		// Visited set stores all packages we have visited. This is used to ensure no
 		// package is visited more than once.
 		HashSet<Pair<String,String>> visited = new HashSet<>(dependencies);
-		// Iterate until no more dependencies to resolve
-		while(dependencies.size() > 0) {
-			// Iterate current batch of dependencies
-			dependencies = process(packages,dependencies,visited);
+		try {
+			// Iterate until no more dependencies to resolve
+			while(dependencies.size() > 0) {
+				// Iterate current batch of dependencies
+				dependencies = process(packages,dependencies,visited,missing);
+			}
+			if (!missing.isEmpty()) {
+				throw new IOException("unable to resolve " + String.join(", ", missing));
+			}
+		} catch (IOException e) {
+			release(packages);
+			throw e;
+		}
+		return packages;
+	}
+
+	/**
+	 * Resolve the combined dependency closure of several configurations. This
+	 * proceeds breadth first, where all dependencies at a given depth are resolved
+	 * (and, if necessary, downloaded) in parallel on a dedicated, bounded pool of
+	 * I/O threads. As for <code>resolve()</code>, this fails if any dependency
+	 * cannot be found. However, all missing dependencies are reported together.
+	 * If resolving any dependency fails outright, then the remaining resolutions
+	 * are cancelled.
+	 *
+	 * @param cfs
+	 * @return
+	 * @throws IOException
+	 */
+	@Override
+	public List<Path.Root> resolveAll(List<Configuration> cfs) throws IOException {
+		ArrayList<Path.Root> packages = new ArrayList<>();
+		ArrayList<String> missing = new ArrayList<>();
+		HashSet<Pair<String, String>> visited = new HashSet<>();
+		ArrayList<Pair<String, String>> batch = new ArrayList<>();
+		for (Configuration cf : cfs) {
+			for (Pair<String, String> d : extractDependencies(cf)) {
+				if (visited.add(d)) {
+					batch.add(d);
+				}
+			}
+		}
+		while (!batch.isEmpty()) {
+			ArrayList<Future<Resolution>> futures = new ArrayList<>();
+			for (Pair<String, String> dep : batch) {
+				futures.add(IO_EXECUTOR.submit(() -> resolve(dep)));
+			}
+			ArrayList<Pair<String, String>> children = new ArrayList<>();
+			for (int i = 0; i != batch.size(); ++i) {
+				Resolution r;
+				try {
+					r = pin(batch.get(i), join(futures.get(i)));
+				} catch (IOException e) {
+					// No point continuing with the others
+					for (Future<Resolution> f : futures) {
+						f.cancel(true);
+					}
+					release(packages);
+					throw e;
+				}
+				if (r.root == null) {
+					missing.add(batch.get(i).first() + "-v" + batch.get(i).second());
+				} else {
+					packages.add(r.root);
+					for (Pair<String, String> d : r.dependencies) {
+						if (visited.add(d)) {
+							children.add(d);
+						}
+					}
+				}
+			}
+			batch = children;
+		}
+		if (!missing.isEmpty()) {
+			release(packages);
+			throw new IOException("unable to resolve " + String.join(", ", missing));
 		}
 		return packages;
 	}
 
+	@Override
+	public void release(List<Path.Root> roots) {
+		for (Path.Root root : roots) {
+			cache.unpin(root);
+		}
+	}
+
 	@Override
 	public Repository getRepository() {
 		return repository;
 	}
 
-	private List<Pair<String, String>> process(List<Path.Root> packages, List<Pair<String, String>> batch, Set<Pair<String, String>> visited) throws IOException {
+	private List<Pair<String, String>> process(List<Path.Root> packages, List<Pair<String, String>> batch,
+			Set<Pair<String, String>> visited, List<String> missing) throws IOException {
 		// Children will store all dependencies of those in batch
 		ArrayList<Pair<String,String>> children = new ArrayList<>();
 		// Process current batch of dependencies
 		for (Pair<String, String> dep : batch) {
-			String name = dep.first();
-			SemanticVersion version = resolveLatestCompatible(name,new SemanticVersion(dep.second()));
-			Path.Root pkg = repository.get(name, version);
-			if (pkg != null) {
-				// Read package configuration file.
-				Path.Entry<ConfigFile> entry = pkg.get(Trie.fromString("wy"), ConfigFile.ContentType);
-				if (entry == null) {
-					// Something is wrong
-					environment.getLogger()
-							.logTimedMessage("Corrupt package " + pkg + "-v" + version + " (missing wy.toml)", 0, 0);
-				} else {
-					// Convert file into configuration
-					Configuration cf = entry.read().toConfiguration(Package.SCHEMA, false);
-					// Add all (non-visited) child dependencies
-					for(Pair<String, String> d : extractDependencies(cf)) {
-						if(!visited.contains(d)) {
-							visited.add(d);
-							children.add(d);
-						}
+			Resolution r = pin(dep, resolve(dep));
+			if (r.root != null) {
+				// Add all (non-visited) child dependencies
+				for(Pair<String, String> d : r.dependencies) {
+					if(!visited.contains(d)) {
+						visited.add(d);
+						children.add(d);
 					}
-					// Done
-					packages.add(pkg);
-					// Log event
-					environment.getLogger().logTimedMessage("Loaded " + name + "-v" + version, 0, 0);
 				}
+				// Done
+				packages.add(r.root);
+			} else {
+				missing.add(dep.first() + "-v" + dep.second());
 			}
 		}
 		//
 		return children;
 	}
 
+	/**
+	 * Resolve a given dependency, reusing the outcome of any previous (or
+	 * concurrent) resolution of the same dependency.
+	 *
+	 * @param dep
+	 * @return
+	 * @throws IOException
+	 */
+	private Resolution resolve(Pair<String, String> dep) throws IOException {
+		FutureTask<Resolution> task = new FutureTask<>(() -> load(dep));
+		FutureTask<Resolution> existing = resolutions.putIfAbsent(dep, task);
+		if (existing == null) {
+			task.run();
+		} else {
+			task = existing;
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("package resolution interrupted", e);
+		} catch (ExecutionException e) {
+			// Allow resolution to be retried
+			resolutions.remove(dep, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	private static ExecutorService createExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "package-resolver");
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private static <T> T join(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("package resolution interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else {
+				throw new IOException(cause.getMessage(), cause);
+			}
+		}
+	}
+
+	/**
+	 * Pin the root of a given resolution on behalf of the caller, such that it
+	 * cannot be evicted from the cache before the caller releases it. If it has
+	 * already been evicted (e.g. because it was resolved some time ago), then the
+	 * memoised resolution is discarded and the dependency resolved again.
+	 *
+	 * @param dep
+	 * @param r
+	 * @return
+	 * @throws IOException
+	 */
+	private Resolution pin(Pair<String, String> dep, Resolution r) throws IOException {
+		while (r.root != null && !cache.pin(r.root)) {
+			resolutions.remove(dep);
+			r = resolve(dep);
+		}
+		return r;
+	}
+
+	/**
+	 * Load the package for a given dependency, along with its own dependencies.
+	 *
+	 * @param dep
+	 * @return
+	 * @throws IOException
+	 */
+	private Resolution load(Pair<String, String> dep) throws IOException {
+		String name = dep.first();
+		SemanticVersion version = resolveLatestCompatible(name,new SemanticVersion(dep.second()));
+		Path.Root pkg = repository.get(name, version);
+		if (pkg != null) {
+			// Read package configuration file.
+			Path.Entry<ConfigFile> entry = pkg.get(Trie.fromString("wy"), ConfigFile.ContentType);
+			if (entry == null) {
+				// Something is wrong
+				environment.getLogger()
+						.logTimedMessage("Corrupt package " + pkg + "-v" + version + " (missing wy.toml)", 0, 0);
+			} else {
+				// Convert file into configuration
+				Configuration cf = entry.read().toConfiguration(Package.SCHEMA, false);
+				// Log event
+				environment.getLogger().logTimedMessage("Loaded " + name + "-v" + version, 0, 0);
+				// Done
+				return new Resolution(pkg, extractDependencies(cf));
+			}
+		}
+		return new Resolution(null, null);
+	}
+
 	/**
 	 * For a given package and version, determine the latest compatible version
 	 * whilst respecting the rules of semantic versioning. Thus, for a given major
@@ -144,4 +368,18 @@ public class StdPackageResolver implements Package.Resolver {
 		}
 		return pairs;
 	}
+
+	/**
+	 * The outcome of resolving a single dependency. If the package could not be
+	 * found (or is corrupt) then its root is <code>null</code>.
+	 */
+	private static class Resolution {
+		private final Path.Root root;
+		private final List<Pair<String, String>> dependencies;
+
+		public Resolution(Path.Root root, List<Pair<String, String>> dependencies) {
+			this.root = root;
+			this.dependencies = dependencies;
+		}
+	}
 }
@@ -0,0 +1,411 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Provides random access to a zip archive on disk. Only the central directory
+ * is read when the archive is opened, meaning the cost of opening an archive
+ * does not depend upon the size of its contents. Optionally, the archive can be
+ * memory mapped, in which case entries are read directly from the mapping and
+ * only those pages actually accessed are loaded.
+ */
+public class ZipArchiveReader implements Closeable {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_SIGNATURE = 0x06054b50;
+	private static final int END_OF_CENTRAL_SIZE = 22;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	private final FileChannel channel;
+	/**
+	 * Mapping of the entire archive, or <code>null</code> if not mapped.
+	 */
+	private final MappedByteBuffer mapping;
+	private final String comment;
+	private final List<Entry> entries;
+
+	public ZipArchiveReader(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Open a given archive, optionally memory mapping it. Archives too large to be
+	 * mapped in one piece are read normally. Once mapped, the underlying file is
+	 * closed (the mapping remains valid).
+	 *
+	 * @param file
+	 * @param map
+	 * @throws IOException
+	 */
+	public ZipArchiveReader(File file, boolean map) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			// Locate the end of central directory record
+			long size = channel.size();
+			if (map && size <= Integer.MAX_VALUE) {
+				this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				channel.close();
+			} else {
+				this.mapping = null;
+			}
+			int tail = (int) Math.min(size, END_OF_CENTRAL_SIZE + 0xFFFF);
+			ByteBuffer buffer = read(size - tail, tail);
+			int end = findEndOfCentralDirectory(buffer);
+			if (end < 0) {
+				throw new IOException("invalid zip archive: " + file);
+			}
+			int count = buffer.getShort(end + 10) & 0xFFFF;
+			int length = buffer.getInt(end + 12);
+			long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+			int commentLength = buffer.getShort(end + 20) & 0xFFFF;
+			byte[] bytes = new byte[Math.min(commentLength, buffer.limit() - end - END_OF_CENTRAL_SIZE)];
+			buffer.position(end + END_OF_CENTRAL_SIZE);
+			buffer.get(bytes);
+			this.comment = new String(bytes, StandardCharsets.UTF_8);
+			// Parse the central directory itself
+			this.entries = readCentralDirectory(read(offset, length), count);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the archive comment (or the empty string if none).
+	 *
+	 * @return
+	 */
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * Get the entries in this archive in the order they appear in the central
+	 * directory.
+	 *
+	 * @return
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Read the raw (i.e. still compressed) contents of a given entry. This is
+	 * useful for copying an entry into another archive without decompressing and
+	 * recompressing it. This method is safe to call concurrently.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] readRaw(Entry entry) throws IOException {
+		ByteBuffer data = read(getDataOffset(entry), (int) entry.compressedSize);
+		return data.array();
+	}
+
+	/**
+	 * Open a stream which reads the (decompressed) contents of a given entry. Data
+	 * is decompressed as it is read, and (for a mapped archive) is read directly
+	 * from the mapping. The size and CRC-32 of the contents are checked against
+	 * the central directory once the end of the stream is reached, such that a
+	 * corrupt entry is reported as an <code>IOException</code> rather than read
+	 * silently. This method is safe to call concurrently, though the resulting
+	 * stream is not.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openStream(Entry entry) throws IOException {
+		long start = getDataOffset(entry);
+		ByteBuffer data;
+		if (mapping != null) {
+			data = mapping.duplicate();
+			data.position((int) start);
+			data.limit((int) (start + entry.compressedSize));
+			data = data.slice();
+		} else {
+			data = read(start, (int) entry.compressedSize);
+		}
+		InputStream raw = new ByteBufferInputStream(data);
+		switch (entry.method) {
+		case STORED:
+			return new VerifyingInputStream(raw, entry);
+		case DEFLATED:
+			return new VerifyingInputStream(new InflaterInputStream(raw, new Inflater(true), 8192) {
+				private boolean eof;
+
+				@Override
+				protected void fill() throws IOException {
+					if (eof) {
+						throw new EOFException("unexpected end of zip entry");
+					}
+					len = in.read(buf, 0, buf.length);
+					if (len == -1) {
+						// Raw inflation may require an extra "dummy" byte
+						buf[0] = 0;
+						len = 1;
+						eof = true;
+					}
+					inf.setInput(buf, 0, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inf.end();
+				}
+			}, entry);
+		default:
+			throw new IOException("unsupported compression method for " + entry.name);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Determine the offset of the data for a given entry, which follows its local
+	 * header.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private long getDataOffset(Entry entry) throws IOException {
+		ByteBuffer header = read(entry.offset, 30);
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("invalid zip archive (corrupt entry " + entry.name + ")");
+		}
+		int nameLength = header.getShort(26) & 0xFFFF;
+		int extraLength = header.getShort(28) & 0xFFFF;
+		return entry.offset + 30 + nameLength + extraLength;
+	}
+
+	/**
+	 * Read a given number of bytes from a given position in the archive.
+	 *
+	 * @param position
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		if (mapping != null) {
+			if (position < 0 || position + length > mapping.capacity()) {
+				throw new IOException("unexpected end of zip archive");
+			}
+			ByteBuffer source = mapping.duplicate();
+			source.position((int) position);
+			source.limit((int) (position + length));
+			buffer.put(source);
+			buffer.flip();
+			return buffer;
+		}
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of zip archive");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Search backwards for the end of central directory signature. This is
+	 * complicated by the presence of the (variable length) archive comment.
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	private static int findEndOfCentralDirectory(ByteBuffer buffer) {
+		for (int i = buffer.limit() - END_OF_CENTRAL_SIZE; i >= 0; --i) {
+			if (buffer.getInt(i) == END_OF_CENTRAL_SIGNATURE) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static List<Entry> readCentralDirectory(ByteBuffer buffer, int count) throws IOException {
+		ArrayList<Entry> entries = new ArrayList<>(count);
+		int pos = 0;
+		for (int i = 0; i != count; ++i) {
+			if (buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("invalid zip archive (corrupt central directory)");
+			}
+			int method = buffer.getShort(pos + 10) & 0xFFFF;
+			long crc = buffer.getInt(pos + 16) & 0xFFFFFFFFL;
+			long compressedSize = buffer.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+			int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+			int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+			long offset = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+			byte[] name = new byte[nameLength];
+			buffer.position(pos + 46);
+			buffer.get(name);
+			entries.add(new Entry(new String(name, StandardCharsets.UTF_8), method, crc, compressedSize, size, offset));
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * An input stream over the remaining contents of a byte buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * An input stream over the contents of an entry, which checks their size and
+	 * CRC-32 against those recorded in the central directory.
+	 */
+	private static class VerifyingInputStream extends CheckedInputStream {
+		private final Entry entry;
+		private long count;
+
+		public VerifyingInputStream(InputStream in, Entry entry) {
+			super(in, new CRC32());
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			check(b == -1 ? -1 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = super.read(bytes, offset, length);
+			check(n);
+			return n;
+		}
+
+		private void check(int n) throws IOException {
+			if (n > 0) {
+				count += n;
+			}
+			if (count > entry.size || (n == -1 && (count != entry.size || getChecksum().getValue() != entry.crc))) {
+				throw new IOException("corrupt zip entry " + entry.name + " (size or CRC mismatch)");
+			}
+		}
+	}
+
+	/**
+	 * Describes an entry in the central directory of a zip archive.
+	 */
+	public static class Entry {
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long offset;
+
+		public Entry(String name, int method, long crc, long compressedSize, long size, long offset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the offset of the local header for this entry within the archive.
+		 *
+		 * @return
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+}
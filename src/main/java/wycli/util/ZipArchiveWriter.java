@@ -0,0 +1,331 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>
+ * Writes a zip archive directly to an output stream. Unlike
+ * <code>java.util.zip.ZipOutputStream</code>, entries are given to the writer
+ * already compressed. This means entries can be compressed independently (e.g.
+ * in parallel) and then written out in a fixed order without holding the
+ * entire archive in memory.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> this does not support the ZIP64 extensions and, hence, archives
+ * are limited to 65535 entries and 4GB in total. An archive exceeding these
+ * limits is reported as an error rather than being silently corrupted. Once an
+ * error arises, the writer is marked as failed and closing it will not write
+ * the central directory. This prevents a partial archive from appearing valid.
+ * </p>
+ */
+public class ZipArchiveWriter implements Closeable {
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_SIGNATURE = 0x06054b50;
+	private static final int VERSION = 20;
+	// Indicates entry names are encoded in UTF8
+	private static final int FLAG_UTF8 = 0x0800;
+	// Maximum value of an unsigned 16 bit field
+	private static final int MAX_SHORT = 0xFFFF;
+	// Maximum value of an unsigned 32 bit field
+	private static final long MAX_INT = 0xFFFFFFFFL;
+
+	/**
+	 * The earliest time which can be represented in a zip file (i.e.
+	 * 1980-01-01T00:00:00Z). This is useful for producing reproducible archives.
+	 */
+	public static final long EPOCH = 315532800000L;
+
+	/**
+	 * The stream to which the archive is written.
+	 */
+	private final OutputStream output;
+
+	/**
+	 * Records the information needed for the central directory.
+	 */
+	private final ArrayList<Record> records = new ArrayList<>();
+
+	/**
+	 * Current offset within the archive.
+	 */
+	private long offset;
+
+	/**
+	 * The archive comment (if any).
+	 */
+	private byte[] comment = new byte[0];
+
+	/**
+	 * Indicates whether an error arose whilst writing the archive.
+	 */
+	private boolean failed;
+
+	public ZipArchiveWriter(OutputStream output) {
+		this.output = output;
+	}
+
+	/**
+	 * Set the comment for this archive. This must be done before the archive is
+	 * closed.
+	 *
+	 * @param comment
+	 */
+	public void setComment(String comment) {
+		this.comment = comment.getBytes(StandardCharsets.UTF_8);
+		if (this.comment.length > MAX_SHORT) {
+			throw new IllegalArgumentException("archive comment too long");
+		}
+	}
+
+	/**
+	 * Add a directory entry to this archive. The name should end with a
+	 * <code>'/'</code>.
+	 *
+	 * @param name
+	 * @param time
+	 * @throws IOException
+	 */
+	public void addDirectory(String name, long time) throws IOException {
+		add(new Entry(name, time, Entry.STORED, 0, 0, new byte[0], 0));
+	}
+
+	/**
+	 * Add a given (already compressed) entry to this archive.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void add(Entry entry) throws IOException {
+		byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+		try {
+			if (failed) {
+				throw new IOException("zip archive previously failed");
+			} else if (records.size() == MAX_SHORT) {
+				throw new IOException("zip archive has too many entries (limit " + MAX_SHORT + ")");
+			} else if (name.length > MAX_SHORT) {
+				throw new IOException("zip entry name too long (" + entry.name + ")");
+			} else if (entry.size > MAX_INT || offset > MAX_INT) {
+				throw new IOException("zip archive too large (at " + entry.name + ")");
+			}
+			int dostime = toDosTime(entry.time);
+			ByteBuffer header = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(LOCAL_HEADER_SIGNATURE);
+			header.putShort((short) VERSION);
+			header.putShort((short) FLAG_UTF8);
+			header.putShort((short) entry.method);
+			header.putInt(dostime);
+			header.putInt((int) entry.crc);
+			header.putInt(entry.length);
+			header.putInt((int) entry.size);
+			header.putShort((short) name.length);
+			header.putShort((short) 0);
+			header.put(name);
+			output.write(header.array());
+			output.write(entry.data, 0, entry.length);
+			records.add(new Record(name, dostime, entry, offset));
+			offset += header.capacity() + entry.length;
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Mark this archive as failed. This should be called when an error arises
+	 * producing entries for the archive, such that closing it does not produce a
+	 * partial (but otherwise valid) archive.
+	 */
+	public void abort() {
+		failed = true;
+	}
+
+	/**
+	 * Write the central directory and close the underlying stream. If the archive
+	 * has failed, then the underlying stream is closed without writing the
+	 * central directory.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!failed) {
+				finish();
+			}
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Write the central directory and end of central directory record.
+	 *
+	 * @throws IOException
+	 */
+	private void finish() throws IOException {
+		long start = offset;
+		if (start > MAX_INT) {
+			failed = true;
+			throw new IOException("zip archive too large");
+		}
+		for (Record r : records) {
+			ByteBuffer header = ByteBuffer.allocate(46 + r.name.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(CENTRAL_HEADER_SIGNATURE);
+			header.putShort((short) VERSION);
+			header.putShort((short) VERSION);
+			header.putShort((short) FLAG_UTF8);
+			header.putShort((short) r.method);
+			header.putInt(r.dostime);
+			header.putInt((int) r.crc);
+			header.putInt(r.length);
+			header.putInt((int) r.size);
+			header.putShort((short) r.name.length);
+			// Extra field, comment, disk number and internal attributes
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putInt(0);
+			header.putInt((int) r.offset);
+			header.put(r.name);
+			output.write(header.array());
+			offset += header.capacity();
+		}
+		if (offset - start > MAX_INT) {
+			failed = true;
+			throw new IOException("zip archive central directory too large");
+		}
+		ByteBuffer end = ByteBuffer.allocate(22 + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_OF_CENTRAL_SIGNATURE);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) records.size());
+		end.putShort((short) records.size());
+		end.putInt((int) (offset - start));
+		end.putInt((int) start);
+		end.putShort((short) comment.length);
+		end.put(comment);
+		output.write(end.array());
+	}
+
+	/**
+	 * Convert a given time in milliseconds into the MS-DOS format used in zip
+	 * files. UTC is used so that archives do not depend on the local time zone.
+	 *
+	 * @param time
+	 * @return
+	 */
+	private static int toDosTime(long time) {
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC);
+		int year = Math.max(d.getYear(), 1980) - 1980;
+		return (year << 25) | (d.getMonthValue() << 21) | (d.getDayOfMonth() << 16) | (d.getHour() << 11)
+				| (d.getMinute() << 5) | (d.getSecond() >> 1);
+	}
+
+	/**
+	 * An entry which is ready to be written into an archive. That is, its
+	 * contents have already been compressed and its checksum computed.
+	 */
+	public static class Entry {
+		public static final int STORED = 0;
+		public static final int DEFLATED = 8;
+
+		private final String name;
+		private final long time;
+		private final int method;
+		private final long crc;
+		private final long size;
+		private final byte[] data;
+		private final int length;
+
+		public Entry(String name, long time, int method, long crc, long size, byte[] data, int length) {
+			this.name = name;
+			this.time = time;
+			this.method = method;
+			this.crc = crc;
+			this.size = size;
+			this.data = data;
+			this.length = length;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Construct an entry from a given set of uncompressed bytes. The contents are
+		 * deflated unless this would not reduce their size, in which case they are
+		 * stored uncompressed.
+		 *
+		 * @param name
+		 * @param time
+		 * @param contents
+		 * @param deflater
+		 * @return
+		 */
+		public static Entry deflate(String name, long time, byte[] contents, Deflater deflater) {
+			CRC32 crc = new CRC32();
+			crc.update(contents);
+			// Compress the contents
+			deflater.reset();
+			deflater.setInput(contents);
+			deflater.finish();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, contents.length / 2));
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				buffer.write(chunk, 0, n);
+			}
+			if (buffer.size() < contents.length) {
+				return new Entry(name, time, DEFLATED, crc.getValue(), contents.length, buffer.toByteArray(),
+						buffer.size());
+			} else {
+				return new Entry(name, time, STORED, crc.getValue(), contents.length, contents, contents.length);
+			}
+		}
+	}
+
+	private static class Record {
+		private final byte[] name;
+		private final int dostime;
+		private final int method;
+		private final long crc;
+		private final long size;
+		private final int length;
+		private final long offset;
+
+		public Record(byte[] name, int dostime, Entry entry, long offset) {
+			this.name = name;
+			this.dostime = dostime;
+			this.method = entry.method;
+			this.crc = entry.crc;
+			this.size = entry.size;
+			this.length = entry.length;
+			this.offset = offset;
+		}
+	}
+}
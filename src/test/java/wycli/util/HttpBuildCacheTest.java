@@ -0,0 +1,193 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Tests for the HTTP build cache, using a local stub server which stores
+ * entries in memory.
+ */
+public class HttpBuildCacheTest {
+	private StubServer server;
+	private StubCache stub;
+
+	@Before
+	public void setup() throws IOException {
+		stub = new StubCache();
+		server = new StubServer(stub::handle);
+	}
+
+	@After
+	public void teardown() {
+		server.close();
+	}
+
+	@Test
+	public void test_get_01() throws IOException {
+		// Missing entries are not an error
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), null)) {
+			assertNull(cache.get("abc"));
+		}
+	}
+
+	@Test
+	public void test_put_01() throws IOException {
+		byte[] contents = "hello world".getBytes(StandardCharsets.UTF_8);
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), null)) {
+			cache.put("abc", contents);
+			assertArrayEquals(contents, cache.get("abc"));
+			assertNull(cache.get("def"));
+		}
+		assertArrayEquals(contents, stub.entries.get("/cache/abc"));
+	}
+
+	@Test
+	public void test_put_02() throws IOException {
+		// Entries are replaced
+		try (HttpBuildCache cache = new HttpBuildCache(getURL() + "/", null)) {
+			cache.put("abc", new byte[] { 1, 2, 3 });
+			cache.put("abc", new byte[] { 4, 5 });
+			assertArrayEquals(new byte[] { 4, 5 }, cache.get("abc"));
+		}
+	}
+
+	@Test
+	public void test_put_03() throws IOException {
+		// Empty entries are distinct from missing entries
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), null)) {
+			cache.put("abc", new byte[0]);
+			assertArrayEquals(new byte[0], cache.get("abc"));
+		}
+	}
+
+	@Test
+	public void test_cookie_01() throws IOException {
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), "session=1234")) {
+			cache.put("abc", new byte[] { 1 });
+			assertEquals("session=1234", stub.cookie);
+			stub.cookie = null;
+			cache.get("abc");
+			assertEquals("session=1234", stub.cookie);
+		}
+	}
+
+	@Test
+	public void test_error_01() throws IOException {
+		// Server errors are reported, rather than treated as a miss
+		stub.status = 500;
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), null)) {
+			cache.get("abc");
+			fail("get should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void test_error_02() throws IOException {
+		stub.status = 403;
+		try (HttpBuildCache cache = new HttpBuildCache(getURL(), null)) {
+			cache.put("abc", new byte[] { 1 });
+			fail("put should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(stub.entries.isEmpty());
+	}
+
+	@Test
+	public void test_directory_01() throws IOException {
+		// Local cache is populated from remote cache on a miss
+		File dir = Files.createTempDirectory("cache").toFile();
+		try {
+			try (HttpBuildCache remote = new HttpBuildCache(getURL(), null)) {
+				remote.put("abc", new byte[] { 1, 2, 3 });
+			}
+			try (DirectoryBuildCache cache = new DirectoryBuildCache(dir, new HttpBuildCache(getURL(), null))) {
+				assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("abc"));
+			}
+			// Remote no longer needed
+			stub.entries.clear();
+			try (DirectoryBuildCache cache = new DirectoryBuildCache(dir, null)) {
+				assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("abc"));
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private String getURL() {
+		return server.getURL("/cache");
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * A minimal cache server, which stores entries in memory.
+	 */
+	private static class StubCache {
+		private final HashMap<String, byte[]> entries = new HashMap<>();
+		/**
+		 * Status returned for every request (or zero for normal operation).
+		 */
+		private int status;
+		/**
+		 * The cookie given with the most recent request.
+		 */
+		private String cookie;
+
+		public synchronized void handle(HttpExchange exchange) throws IOException {
+			String path = exchange.getRequestURI().getPath();
+			byte[] body = StubServer.readAll(exchange.getRequestBody());
+			cookie = exchange.getRequestHeaders().getFirst("Cookie");
+			if (status != 0) {
+				exchange.sendResponseHeaders(status, -1);
+			} else if (exchange.getRequestMethod().equals("PUT")) {
+				entries.put(path, body);
+				exchange.sendResponseHeaders(201, -1);
+			} else if (exchange.getRequestMethod().equals("GET") && entries.containsKey(path)) {
+				byte[] contents = entries.get(path);
+				// NOTE: a length of zero indicates chunked encoding
+				exchange.sendResponseHeaders(200, contents.length == 0 ? -1 : contents.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(contents);
+				}
+			} else {
+				exchange.sendResponseHeaders(404, -1);
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import wybs.util.Logger;
+
+/**
+ * Tests for uploading packages to a remote repository, using a local stub
+ * server which implements the resumable upload protocol.
+ */
+public class RemotePackageRepositoryTest {
+	private StubServer server;
+	private StubRepository repository;
+	private CloseableHttpClient client;
+	private File file;
+	private byte[] contents;
+	private String checksum;
+
+	@Before
+	public void setup() throws IOException {
+		repository = new StubRepository();
+		server = new StubServer(repository::handle);
+		// NOTE: automatic retries are disabled to expose transient failures, and
+		// connections are not reused since the stub server may close them.
+		client = HttpClients.custom().disableAutomaticRetries()
+				.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE).build();
+		// Package spanning several upload chunks
+		contents = new byte[(5 * 1024 * 1024) / 2];
+		new Random(0).nextBytes(contents);
+		file = File.createTempFile("test", ".zip");
+		Files.write(file.toPath(), contents);
+		try (InputStream in = new FileInputStream(file)) {
+			checksum = Hashing.toHexString(Hashing.sha256(in));
+		}
+	}
+
+	@After
+	public void teardown() throws IOException {
+		client.close();
+		server.close();
+		file.delete();
+	}
+
+	@Test
+	public void test_upload_01() throws IOException {
+		// Upload package from scratch
+		RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+		assertArrayEquals(contents, repository.getContents());
+		assertEquals(3, repository.puts);
+	}
+
+	@Test
+	public void test_upload_02() throws IOException {
+		// Package already present, so nothing uploaded
+		RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+		RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+		assertArrayEquals(contents, repository.getContents());
+		assertEquals(3, repository.puts);
+	}
+
+	@Test
+	public void test_upload_03() throws IOException {
+		// Resume partial upload
+		repository.received.write(contents, 0, 1024);
+		RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+		assertArrayEquals(contents, repository.getContents());
+		assertEquals(3, repository.puts);
+	}
+
+	@Test
+	public void test_upload_04() throws IOException {
+		// Chunk upload fails, and so does the subsequent query
+		repository.failures = 1;
+		RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+		assertArrayEquals(contents, repository.getContents());
+		assertEquals(4, repository.puts);
+	}
+
+	@Test
+	public void test_upload_05() throws IOException {
+		// Upload repeatedly fails
+		repository.failures = Integer.MAX_VALUE;
+		try {
+			RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+			fail("upload should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("too many attempts"));
+		}
+	}
+
+	@Test
+	public void test_upload_06() throws IOException {
+		// Client errors are not retried
+		repository.forbidden = true;
+		try {
+			RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+			fail("upload should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("status 403"));
+		}
+		assertEquals(1, repository.puts);
+	}
+
+	@Test
+	public void test_upload_07() throws IOException {
+		// Server acknowledges chunks without ever making progress
+		repository.received.write(contents, 0, 1024);
+		repository.stalled = true;
+		try {
+			RemotePackageRepository.upload(client, getURL(), file, checksum, null, Logger.NULL);
+			fail("upload should have failed");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("too many attempts"));
+		}
+	}
+
+	private String getURL() {
+		return server.getURL("/test/0.1.0/test-v0.1.0.zip");
+	}
+
+	/**
+	 * A minimal repository which accepts a single package uploaded in
+	 * contiguous chunks.
+	 */
+	private static class StubRepository {
+		private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		private String checksum;
+		private boolean complete;
+		private boolean forbidden;
+		/**
+		 * Indicates chunks should be acknowledged without being accepted.
+		 */
+		private boolean stalled;
+		private volatile int puts;
+		/**
+		 * Number of chunk uploads which should fail. Each failure also causes the
+		 * following query to be dropped.
+		 */
+		private int failures;
+		private boolean dropQuery;
+
+		public synchronized byte[] getContents() {
+			return complete ? received.toByteArray() : null;
+		}
+
+		public synchronized void handle(HttpExchange exchange) throws IOException {
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				head(exchange);
+			} else if (exchange.getRequestMethod().equals("PUT")) {
+				put(exchange);
+			} else {
+				exchange.sendResponseHeaders(405, -1);
+			}
+		}
+
+		private void head(HttpExchange exchange) throws IOException {
+			if (dropQuery) {
+				// Close connection without responding
+				dropQuery = false;
+				return;
+			} else if (complete) {
+				exchange.getResponseHeaders().set("X-Checksum-SHA256", checksum);
+				exchange.getResponseHeaders().set("Content-Length", Integer.toString(received.size()));
+				exchange.sendResponseHeaders(200, -1);
+			} else if (received.size() > 0) {
+				exchange.getResponseHeaders().set("Range", "bytes=0-" + (received.size() - 1));
+				exchange.sendResponseHeaders(308, -1);
+			} else {
+				exchange.sendResponseHeaders(404, -1);
+			}
+		}
+
+		private void put(HttpExchange exchange) throws IOException {
+			puts++;
+			byte[] body = StubServer.readAll(exchange.getRequestBody());
+			if (forbidden) {
+				exchange.sendResponseHeaders(403, -1);
+				return;
+			} else if (failures > 0) {
+				failures--;
+				dropQuery = true;
+				exchange.sendResponseHeaders(500, -1);
+				return;
+			}
+			// Content-Range: bytes start-end/total
+			String[] range = exchange.getRequestHeaders().getFirst("Content-Range").substring(6).split("[-/]");
+			long start = Long.parseLong(range[0]);
+			long total = Long.parseLong(range[2]);
+			if (start == received.size() && !stalled) {
+				received.write(body, 0, body.length);
+			}
+			if (received.size() == total) {
+				complete = true;
+				checksum = exchange.getRequestHeaders().getFirst("X-Checksum-SHA256");
+				exchange.sendResponseHeaders(201, -1);
+			} else {
+				exchange.getResponseHeaders().set("Range", "bytes=0-" + (received.size() - 1));
+				exchange.sendResponseHeaders(308, -1);
+			}
+		}
+	}
+}
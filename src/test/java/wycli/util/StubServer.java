@@ -0,0 +1,80 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP server for testing clients against. This listens on an
+ * ephemeral local port and passes every request to a given handler, closing
+ * the exchange afterwards.
+ */
+class StubServer implements Closeable {
+	private final HttpServer server;
+
+	public StubServer(HttpHandler handler) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> handle(handler, exchange));
+		server.start();
+	}
+
+	/**
+	 * Construct the URL for a given path on this server.
+	 *
+	 * @param path
+	 *            Absolute path (e.g. <code>/cache</code>).
+	 * @return
+	 */
+	public String getURL(String path) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	/**
+	 * Read the remainder of a given stream (e.g. a request body).
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static void handle(HttpHandler handler, HttpExchange exchange) throws IOException {
+		try {
+			handler.handle(exchange);
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wycli.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for writing zip archives with <code>ZipArchiveWriter</code> and reading
+ * them back with <code>ZipArchiveReader</code>, both with and without memory
+ * mapping.
+ */
+public class ZipArchiveTest {
+	private File file;
+	private byte[] random;
+	private byte[] text;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("test", ".zip");
+		// Incompressible, so stored
+		random = new byte[10000];
+		new Random(0).nextBytes(random);
+		// Compressible, so deflated
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i != 1000; ++i) {
+			sb.append("hello world ").append(i % 10).append('\n');
+		}
+		text = sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@After
+	public void teardown() {
+		file.delete();
+	}
+
+	@Test
+	public void test_roundtrip_01() throws IOException {
+		write("digest:1234");
+		for (boolean map : new boolean[] { false, true }) {
+			try (ZipArchiveReader zf = new ZipArchiveReader(file, map)) {
+				assertEquals("digest:1234", zf.getComment());
+				List<ZipArchiveReader.Entry> entries = zf.getEntries();
+				assertEquals(4, entries.size());
+				assertEntry(zf, entries.get(0), "dir/", ZipArchiveWriter.Entry.STORED, new byte[0]);
+				assertTrue(entries.get(0).isDirectory());
+				assertEntry(zf, entries.get(1), "dir/random.bin", ZipArchiveWriter.Entry.STORED, random);
+				assertEntry(zf, entries.get(2), "dir/text.txt", ZipArchiveWriter.Entry.DEFLATED, text);
+				assertEntry(zf, entries.get(3), "empty.txt", ZipArchiveWriter.Entry.STORED, new byte[0]);
+			}
+		}
+	}
+
+	@Test
+	public void test_roundtrip_02() throws IOException {
+		// No comment
+		write(null);
+		try (ZipArchiveReader zf = new ZipArchiveReader(file)) {
+			assertEquals("", zf.getComment());
+			assertEquals(4, zf.getEntries().size());
+		}
+	}
+
+	@Test
+	public void test_roundtrip_03() throws IOException {
+		// Archive is readable by the standard library
+		write("digest:1234");
+		try (ZipFile zf = new ZipFile(file)) {
+			assertEquals("digest:1234", zf.getComment());
+			assertArrayEquals(random, readAll(zf.getInputStream(zf.getEntry("dir/random.bin"))));
+			assertArrayEquals(text, readAll(zf.getInputStream(zf.getEntry("dir/text.txt"))));
+			assertArrayEquals(new byte[0], readAll(zf.getInputStream(zf.getEntry("empty.txt"))));
+		}
+	}
+
+	@Test
+	public void test_raw_01() throws IOException {
+		// Raw contents can be copied into another archive as is
+		write("digest:1234");
+		File copy = File.createTempFile("test", ".zip");
+		try {
+			try (ZipArchiveReader zf = new ZipArchiveReader(file);
+					ZipArchiveWriter out = new ZipArchiveWriter(new FileOutputStream(copy))) {
+				for (ZipArchiveReader.Entry e : zf.getEntries()) {
+					byte[] raw = zf.readRaw(e);
+					out.add(new ZipArchiveWriter.Entry(e.getName(), ZipArchiveWriter.EPOCH, e.getMethod(), e.getCrc(),
+							e.getSize(), raw, raw.length));
+				}
+			}
+			try (ZipArchiveReader zf = new ZipArchiveReader(copy)) {
+				assertEntry(zf, zf.getEntries().get(2), "dir/text.txt", ZipArchiveWriter.Entry.DEFLATED, text);
+			}
+		} finally {
+			copy.delete();
+		}
+	}
+
+	@Test
+	public void test_crc_01() throws IOException {
+		// Corruption of stored entry is detected
+		write(null);
+		long offset;
+		try (ZipArchiveReader zf = new ZipArchiveReader(file)) {
+			ZipArchiveReader.Entry e = zf.getEntries().get(1);
+			offset = e.getOffset() + 30 + e.getName().length() + 100;
+		}
+		corrupt(offset);
+		for (boolean map : new boolean[] { false, true }) {
+			try (ZipArchiveReader zf = new ZipArchiveReader(file, map)) {
+				readAll(zf.openStream(zf.getEntries().get(1)));
+				fail("corruption not detected");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void test_crc_02() throws IOException {
+		// Size and CRC are checked even if contents inflate successfully
+		write(null);
+		File copy = File.createTempFile("test", ".zip");
+		try {
+			try (ZipArchiveReader zf = new ZipArchiveReader(file);
+					ZipArchiveWriter out = new ZipArchiveWriter(new FileOutputStream(copy))) {
+				ZipArchiveReader.Entry e = zf.getEntries().get(2);
+				byte[] raw = zf.readRaw(e);
+				out.add(new ZipArchiveWriter.Entry(e.getName(), ZipArchiveWriter.EPOCH, e.getMethod(), e.getCrc() ^ 1,
+						e.getSize(), raw, raw.length));
+			}
+			try (ZipArchiveReader zf = new ZipArchiveReader(copy)) {
+				readAll(zf.openStream(zf.getEntries().get(0)));
+				fail("corruption not detected");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			copy.delete();
+		}
+	}
+
+	private void write(String comment) throws IOException {
+		// NOTE: zip entries are raw deflate streams (i.e. without zlib header)
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try (ZipArchiveWriter out = new ZipArchiveWriter(new FileOutputStream(file))) {
+			out.addDirectory("dir/", ZipArchiveWriter.EPOCH);
+			out.add(ZipArchiveWriter.Entry.deflate("dir/random.bin", ZipArchiveWriter.EPOCH, random, deflater));
+			out.add(ZipArchiveWriter.Entry.deflate("dir/text.txt", ZipArchiveWriter.EPOCH, text, deflater));
+			out.add(ZipArchiveWriter.Entry.deflate("empty.txt", ZipArchiveWriter.EPOCH, new byte[0], deflater));
+			if (comment != null) {
+				out.setComment(comment);
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void corrupt(long offset) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xFF);
+		}
+	}
+
+	private static void assertEntry(ZipArchiveReader zf, ZipArchiveReader.Entry entry, String name, int method,
+			byte[] contents) throws IOException {
+		assertEquals(name, entry.getName());
+		assertEquals(method, entry.getMethod());
+		assertEquals(contents.length, entry.getSize());
+		assertArrayEquals(contents, readAll(zf.openStream(entry)));
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}